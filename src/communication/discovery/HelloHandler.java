@@ -9,7 +9,7 @@ import java.util.LinkedHashMap;
 import static communication.interaction.SocketInitializer.*;
 import static communication.structures.Message.Types.LIST_REQUEST;
 
-public class HelloHandler extends Thread {
+public class HelloHandler implements Runnable {
 
     private InetAddress sender;
 
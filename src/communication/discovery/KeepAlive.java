@@ -2,6 +2,8 @@ package communication.discovery;
 
 import communication.structures.Message;
 import fileman.FileHandles;
+import util.Execution;
+import util.PeriodicTask;
 
 import java.net.InetAddress;
 import java.util.LinkedList;
@@ -9,9 +11,8 @@ import java.util.LinkedList;
 import static communication.interaction.SocketInitializer.*;
 import static communication.structures.Message.Types.HELLO;
 import static util.CommonlyUsed.print;
-import static util.Logger.log;
 
-public class KeepAlive extends Thread {
+public class KeepAlive extends PeriodicTask {
 
     private static final int TIME_OUT = 3000;  // ms
 
@@ -33,15 +34,15 @@ public class KeepAlive extends Thread {
         }
     }
 
+    /** Says hello now and every {@link #TIME_OUT} from now on. */
+    public void start() {
+        Execution.execute(this);
+        start(TIME_OUT);
+    }
+
     @Override
     public void run() {
-        while (isRunning()) try {
-            multicastMessage(new Message(HELLO));
-            countPeriods();
-            Thread.sleep(TIME_OUT);
-        }
-        catch (Exception e) {
-            log(e);
-        }
+        multicastMessage(new Message(HELLO));
+        countPeriods();
     }
 }
@@ -7,7 +7,7 @@ import static communication.interaction.SocketInitializer.multicastMessage;
 import static communication.structures.Message.Types.LIST_RESPONSE;
 import static util.CommonlyUsed.*;
 
-public class ListPropagation extends Thread {
+public class ListPropagation implements Runnable {
     @Override
     public void run() {
         String wholeList = FileHandles.getLocalTorrents();
@@ -10,7 +10,7 @@ import static communication.structures.Message.Types.LIST_RESPONSE;
 import static util.CommonlyUsed.getNumberOfPieces;
 import static util.CommonlyUsed.getPiece;
 
-public class ListRequestHandler extends Thread {
+public class ListRequestHandler implements Runnable {
 
     private InetAddress requester;
     private int port;
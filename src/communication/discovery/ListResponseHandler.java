@@ -1,63 +1,45 @@
 package communication.discovery;
 
 import communication.structures.Message;
+import communication.structures.PeerStats;
 import communication.structures.SeederStatus;
 import fileman.FileHandles;
+import util.PeriodicTask;
 
 import java.net.InetAddress;
 import java.util.LinkedHashMap;
 import java.util.PriorityQueue;
-import java.util.Set;
 
 import static communication.interaction.SocketInitializer.*;
 import static communication.structures.Message.Types.LIST_REQUEST;
-import static util.Logger.log;
 
 /**
  * Created when a LIST_RESPONSE is received to build up the list.
+ * A missing piece is requested once the sender stays silent for its RTO, see {@link PeerStats},
+ * and the list is given up on after {@link PeerStats#MAX_BACKOFFS} unanswered timeouts.
  *
- * @version 1.3
+ * @version 1.4
  */
-public class ListResponseHandler extends Thread {
+public class ListResponseHandler extends PeriodicTask {
 
     public static final int PERIOD = 100;
     public static final int MAX_PERIODS = 3;
+    /** How often the handlers waiting on RTOs check them (ms), well below the shortest RTO. */
+    public static final int RETRY_PERIOD = 20;
 
     private static final LinkedHashMap<InetAddress, ListResponseHandler> RESPONSE_HANDLERS = new LinkedHashMap<>();
 
-    static {
-        new Thread(ListResponseHandler::runner).start();
-    }
-
-    /** Periodically runs the threads. */
-    private static void runner() {
-        while (isRunning()) {
-            Set<InetAddress> responders = RESPONSE_HANDLERS.keySet();
-            for (InetAddress responder : responders) {
-                ListResponseHandler uploader = RESPONSE_HANDLERS.get(responder);
-                State s = uploader.getState();
-                if (s == State.NEW) uploader.start();
-                else if (s == State.TERMINATED) {
-                    RESPONSE_HANDLERS.put(responder, new ListResponseHandler(uploader));
-                    RESPONSE_HANDLERS.get(responder).start();
-                }
-            }
-            try {
-                Thread.sleep(PERIOD);
-            }
-            catch (InterruptedException e) {
-                log(e);
-            }
-        }
-    }
-
     public static void addListPiece(Message m) {
         InetAddress sender = m.getSender();
-        if (!RESPONSE_HANDLERS.containsKey(sender))
-            RESPONSE_HANDLERS.put(sender, new ListResponseHandler(sender, m.getTotalPieces()));
+        if (!RESPONSE_HANDLERS.containsKey(sender)) {
+            ListResponseHandler handler = new ListResponseHandler(sender, m.getTotalPieces());
+            RESPONSE_HANDLERS.put(sender, handler);
+            handler.start(RETRY_PERIOD);
+        }
 
         ListResponseHandler handler = RESPONSE_HANDLERS.get(sender);
-        handler.messages.add(m);
+        handler.answered(m.getPieceID());
+        handler.messages.add(m.retain());
     }
 
     private InetAddress sender;
@@ -65,7 +47,12 @@ public class ListResponseHandler extends Thread {
     private SeederStatus status;
     private String[] pieces = null;
     private boolean recentlyUpdated = false;
-    private int periods = 0;
+    private long waitStart = System.currentTimeMillis();
+    private int backoffs = 0;
+    /** The piece last requested, how many times in a row and when (ns). */
+    private int requested = -1;
+    private int timesRequested = 0;
+    private long requestSent;
     private PriorityQueue<Message> messages = new PriorityQueue<>();
 
     private ListResponseHandler(InetAddress sender, int totalPieces) {
@@ -81,15 +68,6 @@ public class ListResponseHandler extends Thread {
         pieces = new String[totalPieces];
         status.beingUpdated();
     }
-    private ListResponseHandler(ListResponseHandler old) {
-        this.sender = old.sender;
-        this.port = old.port;
-        this.status = old.status;
-        this.pieces = old.pieces;
-        this.recentlyUpdated = old.recentlyUpdated;
-        this.periods = old.periods;
-        this.messages = old.messages;
-    }
 
     private String getList() {
         StringBuilder sb = new StringBuilder();
@@ -101,9 +79,13 @@ public class ListResponseHandler extends Thread {
     private synchronized void addNextPiece() {
         Message m = messages.poll();
         int n = m.getTotalPieces();
-        if (n == 0) return;
+        if (n == 0) {
+            m.release();
+            return;
+        }
 
         pieces[m.getPieceID()] = new String(m.getPieceData());
+        m.release();
         recentlyUpdated = true;
         port = m.getPort();
         for (int i = 0; i < n; i++)
@@ -112,6 +94,15 @@ public class ListResponseHandler extends Thread {
         status.updated();
     }
 
+    /** Samples the round-trip time of the sender if the piece answers a request that was sent once. */
+    private synchronized void answered(int pieceID) {
+        if (pieceID != requested) return;
+        if (timesRequested == 1)
+            PeerStats.of(sender).sampleRtt((System.nanoTime() - requestSent) / 1e6);
+        requested = -1;
+        timesRequested = 0;
+    }
+
     private int nextMissing() {
         int id = -1;
         for (int i = 0; i < pieces.length; i++)
@@ -129,34 +120,42 @@ public class ListResponseHandler extends Thread {
         int id = nextMissing();
         if (id == -1) return false;
 
+        synchronized (this) {
+            timesRequested = id == requested ? timesRequested + 1 : 1;
+            requested = id;
+            requestSent = System.nanoTime();
+        }
         Message m = new Message(LIST_REQUEST, id);
         unicastMessage(m, sender, port);
         return true;
     }
 
-    private void countPeriods() {
+    /** Acts when the sender stayed silent for its RTO, doubled for every timeout since it was last heard from. */
+    private void checkTimeout() {
+        long now = System.currentTimeMillis();
         if (recentlyUpdated) {
             recentlyUpdated = false;
-            periods = 0;
+            waitStart = now;
+            backoffs = 0;
         }
-        else periods++;
 
-        if (periods == MAX_PERIODS) {
+        if (now - waitStart < PeerStats.backoff(PeerStats.rtoOf(sender), backoffs)) return;
+        waitStart = now;
+        if (++backoffs < PeerStats.MAX_BACKOFFS) {
             if (requestNext()) return;  // Wait for more messages.
             // List is done.
             else FileHandles.addRemoteTorrents(getList(), sender, port);
         }
-        else if (periods == MAX_PERIODS * 2)
-            status.outOfDate();
-        else return;
+        else status.outOfDate();
 
         RESPONSE_HANDLERS.remove(sender);
+        stop();
     }
 
     @Override
     public void run() {
         if(messages.isEmpty()) {
-            countPeriods();
+            checkTimeout();
             return;
         }
         while (!messages.isEmpty())
@@ -1,9 +1,11 @@
 package communication.interaction;
 
 import communication.sharing.FileDownloader;
+import communication.sharing.FileUploader;
 import communication.torrent.TorrentRequester;
 import fileman.FileHandles;
 import fileman.torrent.GenerateTorrent;
+import util.Execution;
 
 import java.util.Scanner;
 
@@ -13,7 +15,7 @@ import static util.Logger.log;
 /**
  * Represents a thread that simply waits for user input and sends it over the network.
  *
- * @version 2.5
+ * @version 2.10
  */
 public class CommandParser extends Thread {
 
@@ -25,7 +27,7 @@ public class CommandParser extends Thread {
                 print(FileHandles.getAllNetworkTorrents());
                 break;
             case "torrent_request":
-                new TorrentRequester(parts[1], parts.length == 3 ? parts[2] : "output_files").start();
+                Execution.execute(new TorrentRequester(parts[1], parts.length == 3 ? parts[2] : "output_files"));
                 break;
             case "download":
                 if (parts.length == 3)
@@ -47,9 +49,21 @@ public class CommandParser extends Thread {
                     print(FileHandles.getFileMeta(parts[1], parts[2]));
                 else print(FileHandles.getFileMeta(parts[1]));
                 break;
+            case "stats":
+                print("handlers " + HandlerPool.getStats(), "receive buffers " + SocketInitializer.RECEIVE_BUFFERS,
+                        "corrupt datagrams " + SocketInitializer.CORRUPT_DATAGRAMS.sum(),
+                        "dropped sends " + SocketInitializer.DROPPED_SENDS.sum(), "uploads " + FileUploader.getStats(),
+                        "pacing " + PacedSender.getStats());
+                break;
+            case "bench":
+                print(Execution.benchmark(parts.length > 1 ? Integer.parseInt(parts[1]) : 10000, 10));
+                break;
             case "gen":
                 GenerateTorrent.runNew(parts);
                 break;
+            case "regen":
+                GenerateTorrent.runRegen(parts);
+                break;
             default:
                 print("Command not recognized.");
         }
@@ -0,0 +1,139 @@
+package communication.interaction;
+
+import communication.structures.Message;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.concurrent.locks.LockSupport;
+
+import static communication.interaction.Master.respond;
+import static communication.interaction.SocketInitializer.*;
+import static util.Logger.log;
+
+/**
+ * Receives the messages from both the multicast group and the unicast channel on a single thread.
+ * Cheap messages are handled on this thread, the rest are passed to the {@link HandlerPool}.
+ * <p>
+ * A thread that finds a channel's send buffer full waits in {@link #awaitWritable} until the selector reports room,
+ * instead of spinning on the non-blocking channel.
+ * The loop's own thread cannot wait for its selector, so what it sends to a full buffer is dropped,
+ * like any datagram lost on the way.
+ *
+ * @version 1.2
+ */
+class EventLoop {
+
+    private static final int SELECT_TIMEOUT = 500;  // ms
+    /** The longest wait for room in a send buffer before trying again anyway (ms). */
+    private static final long WRITE_WAIT = 10;
+
+    /** The running loop, or null before it starts. */
+    private static volatile EventLoop running;
+
+    private final Selector selector;
+    private volatile Thread thread;
+
+    EventLoop() throws IOException {
+        selector = Selector.open();
+        // The attachment of a key is the monitor that senders wait on for room in its channel.
+        groupChannel.register(selector, SelectionKey.OP_READ, new Object());
+        uniChannel.register(selector, SelectionKey.OP_READ, new Object());
+        running = this;
+    }
+
+    /**
+     * Waits until the selector finds room in the send buffer of the channel, or {@link #WRITE_WAIT} ms pass.
+     * Before the loop runs, it just waits a millisecond.
+     *
+     * @return false if called on the loop's own thread, which must not wait, so the datagram is to be dropped
+     */
+    static boolean awaitWritable(DatagramChannel channel) {
+        EventLoop loop = running;
+        if (loop != null && loop.thread == Thread.currentThread()) return false;
+        SelectionKey key = loop == null ? null : channel.keyFor(loop.selector);
+        if (key == null || !key.isValid()) {
+            LockSupport.parkNanos(1_000_000);
+            return true;
+        }
+        Object room = key.attachment();
+        synchronized (room) {
+            try {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                loop.selector.wakeup();
+                room.wait(WRITE_WAIT);
+            }
+            catch (CancelledKeyException ignored) {
+                // Shutting down.
+            }
+            catch (InterruptedException e) {
+                log(e);
+            }
+        }
+        return true;
+    }
+
+    /** Stops watching for room in the channel and wakes the senders waiting for it. */
+    private static void writable(SelectionKey key) {
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        Object room = key.attachment();
+        synchronized (room) {
+            room.notifyAll();
+        }
+    }
+
+    /** Handles every datagram waiting on the channel. A message that fails to be handled is logged and skipped. */
+    private void drain(DatagramChannel channel) {
+        Message received;
+        try {
+            while ((received = receiveMessage(channel)) != null) {
+                if (received == NOT_RECOGNIZED) continue;
+                try {
+                    respond(received);
+                }
+                catch (RuntimeException e) {
+                    log(e);
+                }
+                finally {
+                    received.release();
+                }
+            }
+        }
+        catch (IOException e) {
+            log(e);
+        }
+    }
+
+    void run() {
+        thread = Thread.currentThread();
+        while (isRunning()) {
+            try {
+                if (selector.select(SELECT_TIMEOUT) == 0) continue;
+            }
+            catch (IOException e) {
+                log(e);
+                continue;
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (key.isValid() && key.isWritable())
+                    writable(key);
+                if (key.isValid() && key.isReadable())
+                    drain((DatagramChannel) key.channel());
+            }
+        }
+
+        try {
+            selector.close();
+        }
+        catch (IOException e) {
+            log(e);
+        }
+    }
+}
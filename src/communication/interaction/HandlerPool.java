@@ -0,0 +1,121 @@
+package communication.interaction;
+
+import util.Execution;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static util.Logger.log;
+
+/**
+ * A small, fixed set of worker threads that run the handlers of received messages.
+ * In virtual thread mode every handler gets a virtual thread of its own instead.
+ * Keeps track of the queue depth and of how long handlers take, from submission to completion.
+ *
+ * @version 1.1
+ */
+public class HandlerPool {
+
+    private static final int WORKERS = Math.max(2, Runtime.getRuntime().availableProcessors());
+    private static final int MAX_QUEUED = 10000;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor EXECUTOR = new ThreadPoolExecutor(
+            WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED),
+            r -> {
+                Thread t = new Thread(r, "handler-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+    private static final AtomicLong handled = new AtomicLong();
+    private static final AtomicLong dropped = new AtomicLong();
+    private static final AtomicLong totalLatency = new AtomicLong();  // ns
+    private static final AtomicLong maxLatency = new AtomicLong();  // ns
+    private static final AtomicInteger maxQueueDepth = new AtomicInteger();
+    private static final AtomicInteger pending = new AtomicInteger();
+
+    private static void recordLatency(long latency) {
+        handled.incrementAndGet();
+        totalLatency.addAndGet(latency);
+        long max;
+        do max = maxLatency.get();
+        while (latency > max && !maxLatency.compareAndSet(max, latency));
+    }
+
+    private static void recordQueueDepth(int depth) {
+        int max;
+        do max = maxQueueDepth.get();
+        while (depth > max && !maxQueueDepth.compareAndSet(max, depth));
+    }
+
+    /**
+     * Queues a handler to be run by one of the workers.
+     * If too many handlers are already waiting, the handler is dropped,
+     * just like the datagram would have been by a full socket buffer.
+     *
+     * @param handler the handler to run
+     */
+    static void submit(Runnable handler) {
+        if (pending.get() >= MAX_QUEUED) {
+            dropped.incrementAndGet();
+            return;
+        }
+
+        long submitted = System.nanoTime();
+        Runnable timed = () -> {
+            try {
+                handler.run();
+            }
+            catch (Exception e) {
+                log(e);
+            }
+            pending.decrementAndGet();
+            recordLatency(System.nanoTime() - submitted);
+        };
+
+        recordQueueDepth(pending.incrementAndGet());
+        if (Execution.isVirtual()) {
+            Execution.execute(timed);
+            return;
+        }
+        try {
+            EXECUTOR.execute(timed);
+        }
+        catch (RejectedExecutionException e) {
+            pending.decrementAndGet();
+            dropped.incrementAndGet();
+        }
+    }
+
+    static void shutdown() {
+        EXECUTOR.shutdown();
+        try {
+            EXECUTOR.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            log(e);
+        }
+    }
+
+    /** @return the number of handlers submitted but not yet finished */
+    public static int getQueueDepth() {
+        return pending.get();
+    }
+
+    public static String getStats() {
+        long n = handled.get();
+        double averageMs = n == 0 ? 0 : totalLatency.get() / (double) n / 1e6;
+        return "{workers=" + (Execution.isVirtual() ? "virtual" : WORKERS) +
+                ", queueDepth=" + getQueueDepth() +
+                ", maxQueueDepth=" + maxQueueDepth.get() +
+                ", handled=" + n +
+                ", dropped=" + dropped.get() +
+                ", averageLatencyMs=" + String.format("%.3f", averageMs) +
+                ", maxLatencyMs=" + String.format("%.3f", maxLatency.get() / 1e6) + "}";
+    }
+}
@@ -12,20 +12,21 @@ import communication.torrent.TorrentFileHandler;
 import communication.torrent.TorrentRequestHandler;
 import communication.torrent.TorrentRequester;
 import fileman.FileHandles;
+import util.Execution;
 
+import java.io.IOException;
 import java.net.InetAddress;
 import java.util.LinkedHashMap;
 
 import static communication.interaction.SocketInitializer.*;
-import static communication.structures.Message.Types.TIMED_OUT;
 import static fileman.torrent.GenerateTorrent.DIR;
-import static util.CommonlyUsed.print;
+import static util.Logger.log;
 
 /**
  * Master thread which provides message sending and receiving.
- * Creates and starts handler threads for all the communication.
+ * Dispatches received messages to their handlers.
  *
- * @version 3.0
+ * @version 4.2
  */
 public class Master {
 
@@ -56,32 +57,38 @@ public class Master {
 
             if (perTorrent.isEmpty()) torrentFileHandlers.remove(sender);
 
-            new ListPropagation().start();
+            Execution.execute(new ListPropagation());
         }
 
     }
 
+    /**
+     * Dispatches a received message.
+     * Handlers that keep the payload after this returns must {@link Message#retain()} the message.
+     *
+     * @param m the received message
+     */
     static void respond(Message m) {
         if (m.getSender().equals(me)) return;
 
         switch (m.getType()) {
             case HELLO:
-                new HelloHandler(m.getSender()).start();
+                HandlerPool.submit(new HelloHandler(m.getSender()));
                 break;
             case LIST_REQUEST:
-                new ListRequestHandler(m).start();
+                HandlerPool.submit(new ListRequestHandler(m));
                 break;
             case LIST_RESPONSE:
                 ListResponseHandler.addListPiece(m);
                 break;
             case TORRENT_REQUEST:
-                new TorrentRequestHandler(m).start();
+                HandlerPool.submit(new TorrentRequestHandler(m));
                 break;
             case TORRENT_FILE:
                 torrentFileHandle(m);
                 break;
             case WHO_HAS:
-                new WhoHasHandler(m).start();
+                HandlerPool.submit(new WhoHasHandler(m));
                 break;
             case I_HAVE:
                 FileHandles.addOwner(m.getTorrentID(), m.getFilename(), m.getPieceID(), m.getSender());
@@ -92,19 +99,27 @@ public class Master {
             case PIECE_DATA:
                 FileDownloader.addPiece(m);
                 break;
+            case BLOCK_REQUEST:
+                FileUploader.enqueueRequest(m);
+                break;
+            case BLOCK_DATA:
+                FileDownloader.addBlock(m);
+                break;
+            case DATA_ACK:
+                FileUploader.acknowledge(m);
+                break;
         }
     }
 
     public static void run() {
-        unicastListener = new UnicastListener();
-        unicastListener.start();
         keepAlive.start();
-        new ListPropagation().start();
+        Execution.execute(new ListPropagation());
         commandParser.start();
-        while (running) {
-            Message received = receiveMessage();
-            if (received == null || received.getType() == TIMED_OUT) continue;
-            respond(received);
+        try {
+            new EventLoop().run();
+        }
+        catch (IOException e) {
+            log(e);
         }
 
         cleanUp();
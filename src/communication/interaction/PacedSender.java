@@ -0,0 +1,286 @@
+package communication.interaction;
+
+import communication.structures.BufferPool;
+import communication.structures.Message;
+import util.TimerWheel;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static communication.structures.Message.MAX_MESSAGE_LENGTH;
+import static communication.structures.Message.Types.*;
+import static util.CommonlyUsed.BLOCK_SIZE;
+import static util.CommonlyUsed.PIECE_SIZE;
+import static util.Logger.log;
+
+/**
+ * Paces the datagrams sent to each destination with a token bucket,
+ * so that tight sending loops do not leave as line rate bursts that overflow the receivers' socket buffers.
+ * The bucket of every destination fills at {@link #RATE} up to {@link #BURST} bytes.
+ * Data datagrams (list pieces, torrent files, pieces and blocks) are queued,
+ * and a single pacer thread sends each as soon as its bucket has the tokens, parking to the nanosecond in between.
+ * Control datagrams (requests, acknowledgements, keep alives) are sent right away, ahead of the queued data,
+ * and still take their tokens, so the data behind them waits its turn.
+ * A sender whose destination already has {@link #MAX_QUEUED} bytes waiting blocks until the pacer catches up,
+ * as it would on a full socket buffer.
+ * Queued datagrams are copied into pooled direct buffers, one pool for blocks and one for whole pieces,
+ * and the bucket of a destination that sent nothing for {@link #IDLE} ms is dropped.
+ * Datagrams are sent without holding the lock of their destination, as a send may wait for room in the socket buffer.
+ *
+ * @version 1.2
+ */
+class PacedSender {
+
+    /** The rate every destination is paced to (Mbit/s), 0 to send everything right away. */
+    static final int RATE = Integer.getInteger("fds.pace", 1000);
+    private static final double BYTES_PER_NS = RATE * 1e6 / 8 / 1e9;
+    /** The bytes that may leave back to back after a destination was idle. */
+    private static final int BURST = 32 * 1024;
+    private static final int MAX_QUEUED = 256 * 1024;
+    /** The time after which the bucket of a destination with nothing queued is dropped (ms). */
+    private static final long IDLE = 10_000;
+    /** The largest datagram copied into a small buffer, enough for a block and its header. */
+    private static final int SMALL_DATAGRAM = 2 * BLOCK_SIZE;
+    private static final BufferPool SMALL_BUFFERS = new BufferPool(SMALL_DATAGRAM, MAX_QUEUED / BLOCK_SIZE, true);
+    private static final BufferPool LARGE_BUFFERS = new BufferPool(MAX_MESSAGE_LENGTH, MAX_QUEUED / PIECE_SIZE + 1, true);
+    private static final EnumSet<Message.Types> DATA = EnumSet.of(LIST_RESPONSE, TORRENT_FILE, PIECE_DATA, BLOCK_DATA);
+
+    private static final ConcurrentHashMap<InetSocketAddress, Lane> LANES = new ConcurrentHashMap<>();
+    private static final Thread PACER = new Thread(PacedSender::pace, "pacer");
+    private static volatile boolean running = true;
+
+    private static final AtomicLong paced = new AtomicLong();
+    private static final AtomicLong direct = new AtomicLong();
+    private static final AtomicLong blocked = new AtomicLong();
+    private static final AtomicLong maxDelay = new AtomicLong();  // ns
+
+    static {
+        PACER.setDaemon(true);
+        if (RATE > 0) {
+            PACER.start();
+            TimerWheel.every(IDLE, PacedSender::retireIdle);
+        }
+    }
+
+    /** @return true if the message waits for its turn, false if it is sent right away */
+    static boolean isPaced(Message message) {
+        return RATE > 0 && running && DATA.contains(message.getType());
+    }
+
+    private static Lane laneOf(DatagramChannel channel, InetSocketAddress destination) {
+        return LANES.computeIfAbsent(destination, d -> new Lane(channel, d));
+    }
+
+    /**
+     * Queues a data datagram for its destination.
+     *
+     * @param data the encoded datagram, between position and limit, copied before returning
+     */
+    static void enqueue(DatagramChannel channel, ByteBuffer data, InetSocketAddress destination) {
+        BufferPool pool = data.remaining() <= SMALL_DATAGRAM ? SMALL_BUFFERS : LARGE_BUFFERS;
+        ByteBuffer copy = pool.acquire();
+        copy.put(data).flip();
+        Queued queued = new Queued(copy, pool, System.nanoTime());
+        while (!laneOf(channel, destination).add(queued)) ;  // Retired meanwhile, the next lookup makes a new one.
+        LockSupport.unpark(PACER);
+    }
+
+    /**
+     * Takes the tokens of a control datagram that is sent right away.
+     *
+     * @param bytes the length of the datagram
+     */
+    static void charge(DatagramChannel channel, InetSocketAddress destination, int bytes) {
+        direct.incrementAndGet();
+        if (RATE > 0) laneOf(channel, destination).charge(bytes);
+    }
+
+    /** Sends the queued datagrams as their buckets allow, sleeping until the next one may go. */
+    private static void pace() {
+        while (running) {
+            long now = System.nanoTime();
+            long wait = Long.MAX_VALUE;
+            for (Lane lane : LANES.values()) {
+                long next = lane.drain(now);
+                if (next >= 0) wait = Math.min(wait, next);
+            }
+            if (wait == Long.MAX_VALUE) LockSupport.park();
+            else LockSupport.parkNanos(wait);
+        }
+    }
+
+    /** Drops the lanes of the destinations that were idle for {@link #IDLE} ms, run on the timer wheel. */
+    private static void retireIdle() {
+        long now = System.nanoTime();
+        for (Lane lane : LANES.values())
+            lane.retireIfIdle(now);
+    }
+
+    /** Stops pacing. Datagrams still queued are dropped and blocked senders return. */
+    static void stop() {
+        running = false;
+        LockSupport.unpark(PACER);
+        for (Lane lane : LANES.values())
+            lane.clear();
+    }
+
+    private static void recordDelay(long delay) {
+        long max;
+        do max = maxDelay.get();
+        while (delay > max && !maxDelay.compareAndSet(max, delay));
+    }
+
+    static String getStats() {
+        long queued = 0;
+        for (Lane lane : LANES.values())
+            queued += lane.getQueued();
+        return "{rateMbps=" + (RATE > 0 ? RATE : "unpaced") +
+                ", destinations=" + LANES.size() +
+                ", queuedBytes=" + queued +
+                ", smallBuffers=" + SMALL_BUFFERS +
+                ", largeBuffers=" + LARGE_BUFFERS +
+                ", paced=" + paced.get() +
+                ", direct=" + direct.get() +
+                ", blockedSenders=" + blocked.get() +
+                ", maxQueueDelayMs=" + String.format("%.3f", maxDelay.get() / 1e6) + "}";
+    }
+
+    /** The token bucket and the queued data of one destination. */
+    private static class Lane {
+        private final DatagramChannel channel;
+        private final InetSocketAddress destination;
+        private final ArrayDeque<Queued> queue = new ArrayDeque<>();
+        /** The datagrams taken off the queue to be sent, used by the pacer thread only. */
+        private final ArrayDeque<Queued> due = new ArrayDeque<>();
+        private int queuedBytes = 0;
+        /** Negative after a datagram larger than the tokens left, which the next ones then wait off. */
+        private double tokens = BURST;
+        private long refilled = System.nanoTime();
+        /** When a datagram was last queued or charged (ns). */
+        private long used = refilled;
+        /** True once the lane was dropped from {@link #LANES}, after which it takes no more datagrams. */
+        private boolean retired = false;
+
+        Lane(DatagramChannel channel, InetSocketAddress destination) {
+            this.channel = channel;
+            this.destination = destination;
+        }
+
+        private void refill(long now) {
+            tokens = Math.min(BURST, tokens + (now - refilled) * BYTES_PER_NS);
+            refilled = now;
+        }
+
+        /**
+         * Queues a datagram, waiting while the queue is full.
+         * The buffer of a datagram that will never be sent is released.
+         *
+         * @return false if the lane was retired, so the datagram must go to a new one
+         */
+        synchronized boolean add(Queued datagram) {
+            if (retired) return false;
+            if (queuedBytes >= MAX_QUEUED) blocked.incrementAndGet();
+            while (queuedBytes >= MAX_QUEUED && running) {
+                try {
+                    wait();
+                }
+                catch (InterruptedException e) {
+                    log(e);
+                    datagram.release();
+                    return true;
+                }
+            }
+            if (!running) {
+                datagram.release();
+                return true;
+            }
+            queue.add(datagram);
+            queuedBytes += datagram.bytes;
+            used = System.nanoTime();
+            return true;
+        }
+
+        synchronized void charge(int bytes) {
+            used = System.nanoTime();
+            refill(used);
+            tokens -= bytes;
+        }
+
+        /**
+         * Drops the lane from {@link #LANES} if nothing is queued and it was not used for {@link #IDLE} ms.
+         * By then its bucket is full, so a new lane for the destination starts in the same state.
+         */
+        synchronized void retireIfIdle(long now) {
+            if (!queue.isEmpty() || now - used < IDLE * 1_000_000) return;
+            retired = true;
+            LANES.remove(destination, this);
+        }
+
+        /**
+         * Sends the queued datagrams the bucket has tokens for.
+         * They are taken off the queue and paid for under the lock, and sent after releasing it.
+         *
+         * @return the time until the next datagram may be sent (ns), -1 if none is queued
+         */
+        long drain(long now) {
+            long wait;
+            synchronized (this) {
+                if (queue.isEmpty()) return -1;
+                refill(now);
+                while (!queue.isEmpty() && tokens >= 0) {
+                    Queued next = queue.poll();
+                    tokens -= next.bytes;
+                    queuedBytes -= next.bytes;
+                    due.add(next);
+                }
+                notifyAll();
+                wait = queue.isEmpty() ? -1 : (long) Math.ceil(-tokens / BYTES_PER_NS);
+            }
+
+            Queued next;
+            while ((next = due.poll()) != null) {
+                SocketInitializer.send(channel, next.datagram, destination);
+                next.release();
+                paced.incrementAndGet();
+                recordDelay(now - next.queued);
+            }
+            return wait;
+        }
+
+        synchronized void clear() {
+            for (Queued queued : queue)
+                queued.release();
+            queue.clear();
+            queuedBytes = 0;
+            notifyAll();
+        }
+
+        synchronized int getQueued() {
+            return queuedBytes;
+        }
+    }
+
+    private static class Queued {
+        final ByteBuffer datagram;
+        final BufferPool pool;
+        final int bytes;
+        final long queued;  // ns
+
+        Queued(ByteBuffer datagram, BufferPool pool, long queued) {
+            this.datagram = datagram;
+            this.pool = pool;
+            this.bytes = datagram.remaining();
+            this.queued = queued;
+        }
+
+        void release() {
+            pool.release(datagram);
+        }
+    }
+}
@@ -1,14 +1,22 @@
 package communication.interaction;
 
 import communication.discovery.KeepAlive;
+import communication.structures.BufferPool;
 import communication.structures.Message;
+import communication.structures.MessageCodec;
 import communication.structures.SeederStatus;
 import communication.torrent.TorrentFileHandler;
 import communication.torrent.TorrentRequester;
+import util.TimerWheel;
 
 import java.io.IOException;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Enumeration;
 import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
 
 import static communication.structures.Message.MAX_MESSAGE_LENGTH;
 import static communication.structures.Message.Types.TIMED_OUT;
@@ -17,19 +25,33 @@ import static util.Logger.log;
 
 public class SocketInitializer {
 
+    /** Enough for every piece a downloader can have buffered. */
+    private static final int MAX_POOLED_BUFFERS = 1024;
+
     public static InetAddress me;
-    static DatagramSocket uniSocket;
+    static DatagramChannel uniChannel;
+    static DatagramChannel groupChannel;
     static KeepAlive keepAlive = new KeepAlive();
     static CommandParser commandParser = new CommandParser();
-    static UnicastListener unicastListener;
     static boolean running = true;
     static LinkedHashMap<InetAddress, LinkedHashMap<String, TorrentFileHandler>> torrentFileHandlers = new LinkedHashMap<>();
     static LinkedHashMap<InetAddress, LinkedHashMap<String, TorrentRequester>> torrentRequesters = new LinkedHashMap<>();
-    private static InetAddress groupAddress;
-    private static MulticastSocket groupSocket;
+    private static InetSocketAddress groupAddress;
     private static int port;
     private static LinkedHashMap<InetAddress, SeederStatus> seeders = new LinkedHashMap<>();
 
+    /** Received datagrams are read into pooled direct buffers, which are returned once their message is released. */
+    static final Message NOT_RECOGNIZED = new Message(TIMED_OUT);
+    static final BufferPool RECEIVE_BUFFERS = new BufferPool(MAX_MESSAGE_LENGTH, MAX_POOLED_BUFFERS, true);
+
+    /** Received datagrams whose checksum did not match. */
+    static final LongAdder CORRUPT_DATAGRAMS = new LongAdder();
+    /** Datagrams the event loop dropped instead of waiting for room in a full send buffer. */
+    static final LongAdder DROPPED_SENDS = new LongAdder();
+
+    /** Messages are encoded directly into a per-thread buffer, instead of a new array per message. */
+    private static final ThreadLocal<ByteBuffer> SEND_BUFFER = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(MAX_MESSAGE_LENGTH));
+
     static {
         try {
             me = InetAddress.getLocalHost();
@@ -41,16 +63,40 @@ public class SocketInitializer {
         }
     }
 
+    /**
+     * Picks the interface to join the multicast group on.
+     * Prefers the interface of this host's address, then any other interface that supports multicast.
+     */
+    private static NetworkInterface multicastInterface() throws SocketException {
+        NetworkInterface nif = me == null ? null : NetworkInterface.getByInetAddress(me);
+        if (nif != null && nif.isUp() && nif.supportsMulticast()) return nif;
+
+        NetworkInterface loopback = null;
+        Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+        while (all.hasMoreElements()) {
+            nif = all.nextElement();
+            if (!nif.isUp() || !nif.supportsMulticast()) continue;
+            if (!nif.isLoopback()) return nif;
+            loopback = nif;
+        }
+        return loopback;
+    }
+
     static void initialize(String groupName, int port) {
         SocketInitializer.port = port;
         try {
-            groupAddress = InetAddress.getByName(groupName);
-            groupSocket = new MulticastSocket(port);
+            InetAddress group = InetAddress.getByName(groupName);
+            groupAddress = new InetSocketAddress(group, port);
+            NetworkInterface nif = multicastInterface();
+            groupChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                    .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                    .bind(new InetSocketAddress(port));
+            if (nif != null) groupChannel.setOption(StandardSocketOptions.IP_MULTICAST_IF, nif);
+            groupChannel.join(group, nif);
+            groupChannel.configureBlocking(false);
             print("Joined");
-            groupSocket.joinGroup(groupAddress);
-            groupSocket.setSoTimeout(500);
-            uniSocket = new DatagramSocket();
-            uniSocket.setSoTimeout(500);
+            uniChannel = DatagramChannel.open(StandardProtocolFamily.INET).bind(null);
+            uniChannel.configureBlocking(false);
         }
         catch (IOException e) {
             log(e);
@@ -73,11 +119,32 @@ public class SocketInitializer {
         return torrentRequesters;
     }
 
-    private static void sendPacket(DatagramSocket socket, Message message, InetAddress host, int port) {
-        byte[] data = message.asBytes();
-        DatagramPacket packet = new DatagramPacket(data, data.length, host, port);
+    /** Encodes a message and sends it, or queues it to be sent at its destination's pace, see {@link PacedSender}. */
+    private static void sendPacket(DatagramChannel channel, Message message, InetSocketAddress destination) {
+        ByteBuffer data = SEND_BUFFER.get();
+        data.clear();
+        MessageCodec.encode(message, data);
+        MessageCodec.appendChecksum(data);
+        data.flip();
+        if (PacedSender.isPaced(message)) {
+            PacedSender.enqueue(channel, data, destination);
+            return;
+        }
+        PacedSender.charge(channel, destination, data.remaining());
+        send(channel, data, destination);
+    }
+
+    static void send(DatagramChannel channel, ByteBuffer data, InetSocketAddress destination) {
         try {
-            socket.send(packet);
+            // The channels are non-blocking, so wait for room in the socket buffer like a blocking send would.
+            while (channel.send(data, destination) == 0)
+                if (!EventLoop.awaitWritable(channel)) {
+                    DROPPED_SENDS.increment();
+                    break;
+                }
+        }
+        catch (ClosedChannelException ignored) {
+            // Shutting down.
         }
         catch (IOException e) {
             log(e);
@@ -88,7 +155,7 @@ public class SocketInitializer {
     }
 
     public static void multicastMessage(Message message) {
-        sendPacket(groupSocket, message, groupAddress, port);
+        sendPacket(groupChannel, message, groupAddress);
     }
 
     public static void unicastMessage(Message message, InetAddress receiver) {
@@ -96,45 +163,52 @@ public class SocketInitializer {
     }
 
     public static void unicastMessage(Message message, InetAddress receiver, int port) {
-        sendPacket(uniSocket, message, receiver, port);
+        sendPacket(uniChannel, message, new InetSocketAddress(receiver, port));
     }
 
-    static Message receiveMessage() {
-        byte[] data = new byte[MAX_MESSAGE_LENGTH];
-        DatagramPacket packet = new DatagramPacket(data, data.length);
+    /**
+     * Receives a waiting datagram from the given channel into a pooled buffer.
+     * The returned message holds the buffer until it is released by the caller.
+     *
+     * @param channel the channel to receive from
+     * @return the received message, or null if nothing valid was waiting
+     * @throws IOException if receiving fails
+     */
+    static Message receiveMessage(DatagramChannel channel) throws IOException {
+        ByteBuffer buffer = RECEIVE_BUFFERS.acquire();
+        InetSocketAddress from;
         try {
-            groupSocket.receive(packet);
-        }
-        catch (SocketTimeoutException e) {
-            return new Message(TIMED_OUT);
+            from = (InetSocketAddress) channel.receive(buffer);
         }
         catch (IOException e) {
-            log(e);
+            RECEIVE_BUFFERS.release(buffer);
+            throw e;
+        }
+        if (from == null) {
+            RECEIVE_BUFFERS.release(buffer);
+            return null;
         }
 
-        Message message;
+        buffer.flip();
+        if (!MessageCodec.checkAndStripChecksum(buffer)) {
+            RECEIVE_BUFFERS.release(buffer);
+            CORRUPT_DATAGRAMS.increment();
+            return NOT_RECOGNIZED;
+        }
         try {
-            message = new Message(packet);
+            return new Message(buffer, from.getAddress(), from.getPort(), RECEIVE_BUFFERS);
         }
         catch (Message.UnrecognizedFormatException e) {
+            RECEIVE_BUFFERS.release(buffer);
             log(e);
-            return null;
+            return NOT_RECOGNIZED;
         }
-
-        return message;
     }
 
     static void cleanUp() {
 
         print("Cleaning up!");
         running = false;
-        try {
-            keepAlive.join();
-        }
-        catch (InterruptedException e) {
-            log(e);
-        }
-
         try {
             commandParser.join();
         }
@@ -142,21 +216,17 @@ public class SocketInitializer {
             log(e);
         }
 
-        try {
-            unicastListener.join();
-        }
-        catch (InterruptedException e) {
-            log(e);
-        }
+        HandlerPool.shutdown();
+        TimerWheel.stop();
+        PacedSender.stop();
 
         print("Leaving");
         try {
-            groupSocket.leaveGroup(groupAddress);
+            groupChannel.close();  // Also leaves the group.
+            uniChannel.close();
         }
         catch (IOException e) {
             log(e);
         }
-        groupSocket.close();
-        uniSocket.close();
     }
 }
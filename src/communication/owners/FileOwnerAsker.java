@@ -2,6 +2,8 @@ package communication.owners;
 
 import communication.structures.Message;
 import fileman.torrent.Torrent;
+import util.PeriodicTask;
+import util.TimerWheel;
 
 import java.net.InetAddress;
 import java.util.Map;
@@ -10,22 +12,28 @@ import static communication.interaction.SocketInitializer.multicastMessage;
 import static communication.interaction.SocketInitializer.unicastMessage;
 import static communication.structures.Message.Types.WHO_HAS;
 import static util.CommonlyUsed.print;
-import static util.Logger.log;
 
 /**
  * Multicasts {@link Message.Types} WHO_HAS message twice.
  * Minimizes packet loss effect.
+ * Asks are paced by the {@link TimerWheel}, a few every tick, instead of sleeping between them.
  *
- * @version 2.0
+ * @version 3.0
  */
-public class FileOwnerAsker extends Thread {
+public class FileOwnerAsker extends PeriodicTask {
 
     private static final long REPEAT_PERIOD = 1000;//ms
     private static final int REPEATS = 2;
+    private static final int ASKS_PER_TICK = (int) TimerWheel.TICK;  // About one per ms.
     private Torrent torrent;
-    private Map<String, Integer> fileData;
+    private String[] filenames;
+    private int[] numberOfPieces;
     private InetAddress potentialOwner;
     private int port;
+    private int fileIndex = 0;
+    private int pieceIndex = 0;
+    private int repeats = 0;
+    private long waitUntil = 0;
 
     public FileOwnerAsker(Torrent torrent) {
         this.torrent = torrent;
@@ -38,35 +46,47 @@ public class FileOwnerAsker extends Thread {
         this.port = port;
     }
 
-    private void multicastAsk() {
-        fileData.forEach((filename, numberOfPieces) -> {
-            for (int i = 0; i < numberOfPieces; i++) {
-                Message message = new Message(WHO_HAS, torrent.getId(), filename, i);
-                try {
-                    Thread.sleep(1);
-                }
-                catch (InterruptedException e) {
-                    log(e);
-                }
-                if (potentialOwner == null)
-                    multicastMessage(message);
-                else unicastMessage(message, potentialOwner, port);
+    /** Starts asking about every piece of the torrent. */
+    public void start() {
+        Map<String, Integer> fileData = torrent.getFilesData();
+        filenames = fileData.keySet().toArray(new String[0]);
+        numberOfPieces = new int[filenames.length];
+        for (int i = 0; i < filenames.length; i++)
+            numberOfPieces[i] = fileData.get(filenames[i]);
+        start(TimerWheel.TICK);
+    }
+
+    private void ask(String filename, int pieceID) {
+        Message message = new Message(WHO_HAS, torrent.getId(), filename, pieceID);
+        if (potentialOwner == null)
+            multicastMessage(message);
+        else unicastMessage(message, potentialOwner, port);
+    }
+
+    /** @return true if every piece has been asked about */
+    private boolean askNext() {
+        for (int asked = 0; asked < ASKS_PER_TICK; asked++) {
+            while (fileIndex < filenames.length && pieceIndex == numberOfPieces[fileIndex]) {
+                fileIndex++;
+                pieceIndex = 0;
             }
-        });
-        try {
-            Thread.sleep(REPEAT_PERIOD);
+            if (fileIndex == filenames.length) return true;
+            ask(filenames[fileIndex], pieceIndex++);
         }
-        catch (InterruptedException e) {
-            log(e);
-        }
-
+        return false;
     }
 
     @Override
     public void run() {
-        fileData = torrent.getFilesData();
-        for (int i = 0; i < REPEATS; i++)
-            multicastAsk();
+        if (System.currentTimeMillis() < waitUntil) return;
+        if (!askNext()) return;
+
+        fileIndex = 0;
+        pieceIndex = 0;
+        waitUntil = System.currentTimeMillis() + REPEAT_PERIOD;
+        if (++repeats < REPEATS) return;
+
+        stop();
         print("Torrent " + torrent.getId() + "'s owners updated!");
     }
 }
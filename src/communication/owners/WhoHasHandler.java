@@ -6,7 +6,7 @@ import fileman.FileHandles;
 import static communication.interaction.SocketInitializer.unicastMessage;
 import static communication.structures.Message.Types.I_HAVE;
 
-public class WhoHasHandler extends Thread {
+public class WhoHasHandler implements Runnable {
 
     private Message m;
 
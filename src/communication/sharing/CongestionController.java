@@ -0,0 +1,178 @@
+package communication.sharing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static util.CommonlyUsed.BLOCK_SIZE;
+import static util.CommonlyUsed.PIECE_SIZE;
+
+/**
+ * Delay based congestion control of the data sent to one peer, after LEDBAT (RFC 6817).
+ * Every data datagram gets a sequence number and the time it was sent,
+ * and the peer acknowledges it with the one-way delay it measured.
+ * The lowest delay seen in the last minutes is the base delay of the path,
+ * and anything above it is time spent in queues.
+ * The window grows while the queuing delay is below {@link #TARGET} and shrinks as it goes above,
+ * so transfers fill idle links and give way as soon as other traffic builds up queues.
+ * A datagram is lost if {@link #REORDERING} later ones are acknowledged before it, or none is for {@link #LOSS_TIMEOUT},
+ * and losses halve the window, at most once per window of data.
+ * <p>
+ * Clocks of the peers are not synchronized, so delays are only compared with each other,
+ * and the offset between the clocks cancels out.
+ *
+ * @version 1.0
+ */
+class CongestionController {
+
+    /** The queuing delay the window settles at (us). */
+    static final int TARGET = 100_000;
+    private static final int GAIN = 1;
+    private static final int MSS = BLOCK_SIZE;
+    private static final int MIN_WINDOW = 2 * MSS;
+    private static final int INITIAL_WINDOW = 4 * MSS;
+    private static final int MAX_WINDOW = 4 * 1024 * 1024;
+    /** The number of delay samples the current delay is the lowest of, to filter out noise. */
+    private static final int CURRENT_FILTER = 4;
+    /** The base delay is the lowest of the last {@link #BASE_HISTORY} minutes. */
+    private static final int BASE_HISTORY = 10;
+    private static final long MINUTE = 60_000;
+    static final int REORDERING = 3;
+    static final long LOSS_TIMEOUT = 1000;  // ms
+
+    /** @return the current time in us, truncated to an int that wraps around every 71 minutes */
+    static int now() {
+        return (int) (System.nanoTime() / 1000);
+    }
+
+    private int window = INITIAL_WINDOW;
+    private boolean slowStart = true;
+    private int inFlight = 0;
+    private int nextSequence = 0;
+    /** Losses of datagrams sent before this one do not shrink the window again. */
+    private int recoveredAfter = 0;
+    /** The datagrams not yet acknowledged, in the order they were sent. */
+    private final LinkedHashMap<Integer, Sent> outstanding = new LinkedHashMap<>();
+
+    private final int[] currentDelays = new int[CURRENT_FILTER];
+    private int samples = 0;
+    private final int[] baseDelays = new int[BASE_HISTORY];
+    private int baseMinutes = 0;
+    private long minuteStart = System.currentTimeMillis();
+
+    /** @return true if the window has room for more data */
+    synchronized boolean canSend() {
+        expire(System.currentTimeMillis());
+        return inFlight < window;
+    }
+
+    /**
+     * Records a datagram about to be sent.
+     *
+     * @param bytes the length of its payload
+     * @return its sequence number
+     */
+    synchronized int sent(int bytes) {
+        int sequence = nextSequence++;
+        outstanding.put(sequence, new Sent(bytes, System.currentTimeMillis()));
+        inFlight += bytes;
+        return sequence;
+    }
+
+    /**
+     * Takes in the acknowledgement of a datagram.
+     *
+     * @param sequence the sequence number of the datagram
+     * @param delay    the one-way delay the peer measured, as its clock minus ours (us)
+     */
+    synchronized void acknowledged(int sequence, int delay) {
+        Sent sent = outstanding.remove(sequence);
+        if (sent == null) return;  // Already taken as lost.
+        boolean limited = inFlight + PIECE_SIZE >= window;
+        inFlight -= sent.bytes;
+
+        addDelay(delay);
+        int queuing = currentDelay() - baseDelay();
+        if (queuing > TARGET * 3 / 4) slowStart = false;
+        if (limited) {
+            if (slowStart) window += sent.bytes;
+            else {
+                double offTarget = (TARGET - queuing) / (double) TARGET;
+                window += (int) (GAIN * offTarget * sent.bytes * MSS / window);
+            }
+        }
+        window = Math.max(MIN_WINDOW, Math.min(MAX_WINDOW, window));
+
+        // Datagrams sent well before an acknowledged one are lost.
+        Iterator<Map.Entry<Integer, Sent>> it = outstanding.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Sent> e = it.next();
+            if (sequence - e.getKey() <= REORDERING) break;
+            lost(e.getKey(), e.getValue());
+            it.remove();
+        }
+    }
+
+    /** Takes datagrams that went unacknowledged for too long as lost. */
+    private void expire(long now) {
+        Iterator<Map.Entry<Integer, Sent>> it = outstanding.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Sent> e = it.next();
+            if (now - e.getValue().time < LOSS_TIMEOUT) break;
+            lost(e.getKey(), e.getValue());
+            it.remove();
+        }
+    }
+
+    private void lost(int sequence, Sent sent) {
+        inFlight -= sent.bytes;
+        if (sequence - recoveredAfter < 0) return;
+        window = Math.max(MIN_WINDOW, window / 2);
+        slowStart = false;
+        recoveredAfter = nextSequence;
+    }
+
+    private void addDelay(int delay) {
+        currentDelays[samples++ % CURRENT_FILTER] = delay;
+
+        long now = System.currentTimeMillis();
+        if (baseMinutes == 0 || now - minuteStart >= MINUTE) {
+            baseDelays[baseMinutes++ % BASE_HISTORY] = delay;
+            minuteStart = now;
+        }
+        int last = (baseMinutes - 1) % BASE_HISTORY;
+        if (delay - baseDelays[last] < 0) baseDelays[last] = delay;
+    }
+
+    /** Delays are compared by their difference, which stays right when the clocks wrap around. */
+    private static int lowest(int[] delays, int count) {
+        int lowest = delays[0];
+        for (int i = 1; i < count; i++)
+            if (delays[i] - lowest < 0) lowest = delays[i];
+        return lowest;
+    }
+
+    private int currentDelay() {
+        return lowest(currentDelays, Math.min(samples, CURRENT_FILTER));
+    }
+
+    private int baseDelay() {
+        return lowest(baseDelays, Math.min(baseMinutes, BASE_HISTORY));
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "{window=" + window + ", inFlight=" + inFlight + ", slowStart=" + slowStart +
+                (samples == 0 ? "" : ", queuingDelayUs=" + (currentDelay() - baseDelay())) + "}";
+    }
+
+    private static class Sent {
+        final int bytes;
+        final long time;
+
+        Sent(int bytes, long time) {
+            this.bytes = bytes;
+            this.time = time;
+        }
+    }
+}
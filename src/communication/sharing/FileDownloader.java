@@ -1,59 +1,38 @@
 package communication.sharing;
 
 import communication.structures.Message;
+import communication.structures.MessageCodec;
+import communication.structures.PeerStats;
+import communication.structures.RequestWindow;
 import fileman.FileHandles;
 import fileman.torrent.BufferedRandomFile;
+import util.PeriodicTask;
 
 import java.io.RandomAccessFile;
 import java.net.InetAddress;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Set;
-import java.util.TreeMap;
-
-import static communication.discovery.ListResponseHandler.MAX_PERIODS;
-import static communication.discovery.ListResponseHandler.PERIOD;
-import static communication.interaction.SocketInitializer.isRunning;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+import static communication.discovery.ListResponseHandler.RETRY_PERIOD;
 import static communication.interaction.SocketInitializer.unicastMessage;
+import static communication.structures.Message.Types.BLOCK_REQUEST;
+import static communication.structures.Message.Types.DATA_ACK;
 import static communication.structures.Message.Types.PIECE_REQUEST;
+import static util.CommonlyUsed.PIECE_SIZE;
 import static util.CommonlyUsed.print;
-import static util.Logger.log;
 
-public class FileDownloader extends Thread {
+public class FileDownloader extends PeriodicTask {
+
+    /**
+     * The shortest time to wait for progress before giving up (ms).
+     * Longer than the owners' {@link CongestionController#LOSS_TIMEOUT},
+     * so that a stalled owner may find its datagrams lost and send again before the download is dropped.
+     */
+    private static final long MIN_GIVE_UP = 2 * CongestionController.LOSS_TIMEOUT;
 
     /** Maps torrentID to filename to downloading thread. */
     private static final Map<String, Map<String, FileDownloader>> TORRENT_MAP = new LinkedHashMap<>();
 
-    static {
-        new Thread(FileDownloader::runner).start();
-    }
-
-    private static void runEntries(String torrentID, Map<String, FileDownloader> map) {
-        Set<String> filenames = map.keySet();
-        for (String filename : filenames) {
-            FileDownloader downloader = map.get(filename);
-            State s = downloader.getState();
-            if (s == State.NEW) downloader.start();
-            else if (s == State.TERMINATED) {
-                map.put(filename, new FileDownloader(downloader));
-                map.get(filename).start();
-            }
-        }
-    }
-
-    /** Periodically runs the threads. */
-    private static void runner() {
-        while (isRunning()) {
-            TORRENT_MAP.forEach(FileDownloader::runEntries);
-            try {
-                Thread.sleep(PERIOD);
-            }
-            catch (InterruptedException e) {
-                log(e);
-            }
-        }
-    }
-
     public static void createNewDownloader(String torrentID) {
         print("Starting new download for torrent=" + torrentID);
         String[] filenames = FileHandles.getFilenamesIn(torrentID);
@@ -75,59 +54,153 @@ public class FileDownloader extends Thread {
 
         FileDownloader downloader = new FileDownloader(torrentID, filename);
         fileMap.put(filename, downloader);
+        downloader.start(RETRY_PERIOD);
+    }
+
+    /** Acknowledges a sequenced piece or block, with the one-way delay it took, for the sender's congestion control. */
+    private static void acknowledge(Message m) {
+        if (m.getSequence() == Message.NO_SEQUENCE || MessageCodec.isLegacy()) return;
+        int delay = CongestionController.now() - m.getTime();
+        unicastMessage(new Message(DATA_ACK, m.getSequence(), delay), m.getSender(), m.getPort());
     }
 
     public static void addPiece(Message m) {
+        acknowledge(m);
         Map<String, FileDownloader> fileMap = TORRENT_MAP.get(m.getTorrentID());
         if (fileMap == null) return;
 
         FileDownloader downloader = fileMap.get(m.getFilename());
         if (downloader == null) return;
 
-        downloader.orderedPieces.put(m.getPieceID(), m.getPieceData());
+        PeerStats.of(m.getSender()).received(m.getPayload().remaining());
+        downloader.answered(m.getPieceID(), m.getSender());
+        Message replaced = downloader.orderedPieces.put(m.getPieceID(), m.retain());
+        if (replaced != null) replaced.release();
+    }
+
+    /**
+     * Copies a received block into the piece it belongs to.
+     * Blocks of pieces that were not requested are ignored.
+     */
+    public static void addBlock(Message m) {
+        acknowledge(m);
+        Map<String, FileDownloader> fileMap = TORRENT_MAP.get(m.getTorrentID());
+        if (fileMap == null) return;
+
+        FileDownloader downloader = fileMap.get(m.getFilename());
+        if (downloader == null) return;
+
+        PeerStats.of(m.getSender()).received(m.getPayload().remaining());
+        downloader.answered(m.getPieceID(), m.getSender());
+        synchronized (downloader.assemblers) {
+            PieceAssembler assembler = downloader.assemblers.get(m.getPieceID());
+            if (assembler != null && assembler.add(m.getBlock(), m.getPayload(), m.getProof()))
+                downloader.recentlyUpdated = true;
+        }
     }
 
     private String torrentID;
     private String filename;
+    private int file;
     private RandomAccessFile writer;
+    private long fileSize;
+    /** True if the pieces are proven by Merkle proofs, which are then requested with their blocks. */
+    private boolean merkle;
     private boolean[] acquiredPieces;
-    private boolean recentlyUpdated = false;
-    private int[] pieces;
-    private TreeMap<Integer, byte[]> orderedPieces = new TreeMap<>();
-    private int periods = 0;
+    private volatile boolean recentlyUpdated = false;
+    private TreeMap<Integer, Message> orderedPieces = new TreeMap<>();
+    /** The pieces requested in blocks, by piece index. */
+    private final HashMap<Integer, PieceAssembler> assemblers = new HashMap<>();
+    /** The requests that hold a slot of their owner's window, by piece index. */
+    private final HashMap<Integer, Request> pending = new HashMap<>();
+    /** The number of times the request of each piece timed out, by piece index. */
+    private final HashMap<Integer, Integer> backoffs = new HashMap<>();
+    private long lastProgress = System.currentTimeMillis();
+    /** The highest RTO of the owners requested from, which the time before giving up is based on. */
+    private long slowestRto = PeerStats.INITIAL_RTO;
     private FileDownloader(String torrentID, String filename) {
         this.torrentID = torrentID;
         this.filename = filename;
+        this.file = FileHandles.getFileIndex(torrentID, filename);
+        fileSize = FileHandles.getFileSize(torrentID, filename);
+        merkle = FileHandles.isMerkle(torrentID);
         writer = FileHandles.getRandomWriter(torrentID, filename);
         acquiredPieces = new boolean[FileHandles.getNumberOfPieces(torrentID, filename)];
-        pieces = FileHandles.getPiecesByRarity(torrentID, filename);
-    }
-    public FileDownloader(FileDownloader old) {
-        this.torrentID = old.torrentID;
-        this.filename = old.filename;
-        this.writer = old.writer;
-        this.acquiredPieces = old.acquiredPieces;
-        this.recentlyUpdated = old.recentlyUpdated;
-        this.pieces = old.pieces;
-        this.orderedPieces = old.orderedPieces;
-        this.periods = old.periods;
     }
 
     private void writeNextPiece() {
-        Map.Entry first = orderedPieces.pollFirstEntry();
+        Map.Entry<Integer, Message> first = orderedPieces.pollFirstEntry();
         if (first == null) return;
-        Integer pieceID = (Integer) first.getKey();
-        if (acquiredPieces[pieceID]) return;  // Ignore repeated packets.
+        Message piece = first.getValue();
+        try {
+            writePiece(first.getKey(), piece.getPayload(), piece.getProof());
+        }
+        finally {
+            piece.release();
+        }
+    }
 
-        byte[] pieceData = (byte[]) first.getValue();
-        if (!FileHandles.check(torrentID, filename, pieceID, pieceData)) {
+    /**
+     * Writes the pieces whose blocks are all in.
+     * A Merkle piece that fails its check is kept to be repaired rather than fetched again whole.
+     *
+     * @return true if any piece was complete
+     */
+    private boolean writeAssembledPieces() {
+        List<Map.Entry<Integer, PieceAssembler>> complete = new ArrayList<>();
+        synchronized (assemblers) {
+            Iterator<Map.Entry<Integer, PieceAssembler>> it = assemblers.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<Integer, PieceAssembler> e = it.next();
+                if (!e.getValue().isComplete()) continue;
+                complete.add(e);
+                it.remove();
+            }
+        }
+        for (Map.Entry<Integer, PieceAssembler> e : complete)
+            if (!writePiece(e.getKey(), e.getValue().getPiece(), e.getValue().getProof()) && merkle)
+                repair(e.getKey(), e.getValue());
+        return !complete.isEmpty();
+    }
+
+    /**
+     * Puts back the assembler of a Merkle piece that failed its check, for only its wrong blocks to be requested again.
+     * The digests of its blocks are requested first, and once they are in and proven by the proof of the piece,
+     * the blocks that do not match them are discarded.
+     * If the digests or the proof are wrong as well, the piece is fetched again whole.
+     */
+    private void repair(int pieceID, PieceAssembler assembler) {
+        if (!assembler.hasLeaves()) assembler.requestLeaves();
+        else {
+            long corrupt = FileHandles.corruptBlocks(torrentID, file, pieceID, assembler.getPiece(),
+                    assembler.getLeaves(), assembler.getProof());
+            if (corrupt == -1 || corrupt == 0) return;
+            print("re-requesting blocks " + Long.toBinaryString(corrupt) + " of ", filename, pieceID);
+            assembler.discard(corrupt);
+        }
+        synchronized (assemblers) {
+            assemblers.put(pieceID, assembler);
+        }
+    }
+
+    /** @return false if the piece failed its check */
+    private boolean writePiece(int pieceID, ByteBuffer pieceData, byte[][] proof) {
+        synchronized (pending) {
+            Request request = pending.remove(pieceID);
+            if (request != null) request.window.close();
+            backoffs.remove(pieceID);
+        }
+        if (acquiredPieces[pieceID]) return true;  // Ignore repeated packets.
+
+        if (!FileHandles.check(torrentID, file, pieceID, pieceData, proof)) {
             print("hashes not matching ", filename, pieceID);
-            return;
+            return false;
         }
 
-        FileHandles.setFilePiece(torrentID, filename, pieceID, pieceData);
+        FileHandles.setFilePiece(torrentID, file, pieceID, pieceData);
         recentlyUpdated = true;
         acquiredPieces[pieceID] = true;
+        return true;
     }
 
     private boolean haveAll() {
@@ -139,37 +212,113 @@ public class FileDownloader extends Thread {
         return true;
     }
 
-    private void countPeriods() {
+    /**
+     * Takes the arrival of a piece or block as an answer to its request.
+     * The first answer to a request that was sent once is a sample of the owner's round-trip time.
+     */
+    private void answered(int pieceID, InetAddress sender) {
+        long now = System.nanoTime();
+        synchronized (pending) {
+            Request request = pending.get(pieceID);
+            if (request == null) return;
+            if (request.heard == 0 && request.backoffs == 0)
+                PeerStats.of(sender).sampleRtt((now - request.sent) / 1e6);
+            request.heard = now;
+        }
+    }
+
+    /**
+     * Gives up once nothing arrived for as long as all the timeouts of a request to the slowest owner take,
+     * but never before {@link #MIN_GIVE_UP}.
+     */
+    private void checkProgress() {
+        long now = System.currentTimeMillis();
         if (recentlyUpdated) {
-            periods = 0;
+            lastProgress = now;
             recentlyUpdated = false;
         }
-        else periods++;
 
-        if (periods < MAX_PERIODS) return;
+        if (now - lastProgress < Math.max(MIN_GIVE_UP, PeerStats.giveUpAfter(slowestRto))) return;
 
         print("Giving up on " + torrentID + "   " + filename);
         cleanUp();
     }
 
     /**
-     * Sends a request for each missing piece.
-     * Starts with the piece that has the least amount of owners.
+     * Sends a request for the rarest missing pieces.
+     * Rarity is looked up anew every period, so it follows owners joining and leaving.
+     * Unless messages are sent in the old format, pieces are requested in blocks,
+     * and a piece that is partly received is asked only for its missing blocks.
+     * A piece is requested only if its owner's {@link RequestWindow} has room,
+     * and is not requested again until it arrives or its request times out.
      */
     private void requestMissing() {
-        int queriesMade = 0;
-        for (Integer id : pieces) {
-            if (acquiredPieces[id]) continue;  // skip acquired pieces
-            InetAddress owner = FileHandles.getOwnerOf(torrentID, filename, id);
-            if (owner == null) continue;
-            Message m = new Message(PIECE_REQUEST, torrentID, filename, id);
-            unicastMessage(m, owner);
-            if (++queriesMade == BufferedRandomFile.MAX_BUFFERS)
-                break;
+        long now = System.nanoTime();
+        boolean inBlocks = !MessageCodec.isLegacy();
+        synchronized (pending) {
+            expireRequests(now);
+            long slowest = 0;
+            for (int id : FileHandles.getRarestMissing(torrentID, file, BufferedRandomFile.MAX_BUFFERS)) {
+                if (acquiredPieces[id] || pending.containsKey(id)) continue;  // skip acquired and requested pieces
+                InetAddress owner = FileHandles.getOwnerOf(torrentID, file, id);
+                if (owner == null) continue;
+                slowest = Math.max(slowest, PeerStats.rtoOf(owner));
+                RequestWindow window = RequestWindow.of(owner);
+                int credits = window.open();
+                if (credits == 0) continue;
+                Message m = inBlocks
+                        ? new Message(BLOCK_REQUEST, torrentID, filename, id, missingBlocks(id), credits)
+                        : new Message(PIECE_REQUEST, torrentID, filename, id, credits);
+                unicastMessage(m, owner);
+                pending.put(id, new Request(window, owner, now, backoffs.getOrDefault(id, 0)));
+            }
+            if (slowest != 0) slowestRto = slowest;
+        }
+    }
+
+    /**
+     * Gives back the window slots of the requests that went unanswered for their owner's RTO, so they are sent again.
+     * The RTO is doubled for every time the request of the same piece timed out before,
+     * and a piece that is arriving in blocks times out only once no block of it arrived for that long.
+     */
+    private void expireRequests(long now) {
+        Iterator<Map.Entry<Integer, Request>> it = pending.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Integer, Request> e = it.next();
+            Request request = e.getValue();
+            long silence = (now - Math.max(request.sent, request.heard)) / 1_000_000;
+            if (silence < PeerStats.backoff(PeerStats.rtoOf(request.owner), request.backoffs)) continue;
+            request.window.close();
+            backoffs.put(e.getKey(), request.backoffs + 1);
+            it.remove();
+        }
+    }
+
+    /** @return the bitmap of the blocks of the piece still missing, starting to assemble it if needed */
+    private long missingBlocks(int pieceID) {
+        synchronized (assemblers) {
+            PieceAssembler assembler = assemblers.get(pieceID);
+            if (assembler == null) {
+                int length = (int) Math.min(PIECE_SIZE, fileSize - (long) pieceID * PIECE_SIZE);
+                assembler = new PieceAssembler(length, merkle);
+                assemblers.put(pieceID, assembler);
+            }
+            return assembler.getMissing();
         }
     }
 
     private void cleanUp() {
+        stop();
+        orderedPieces.values().forEach(Message::release);
+        orderedPieces.clear();
+        synchronized (assemblers) {
+            assemblers.clear();
+        }
+        synchronized (pending) {
+            pending.values().forEach(request -> request.window.close());
+            pending.clear();
+            backoffs.clear();
+        }
         FileHandles.writeAndCloseFile(torrentID, filename);
         Map<String, FileDownloader> fileMap = TORRENT_MAP.get(torrentID);
         fileMap.remove(filename);
@@ -177,17 +326,39 @@ public class FileDownloader extends Thread {
             TORRENT_MAP.remove(torrentID);
     }
 
+    /**
+     * Writes the pieces that arrived since the last period and refills the request windows with the slots they freed,
+     * so that requests keep pace with the pieces coming back.
+     */
     @Override
     public void run() {
-        if (orderedPieces.isEmpty()) {
+        boolean assembled = writeAssembledPieces();
+        if (orderedPieces.isEmpty() && !assembled) {
             requestMissing();
-            countPeriods();
+            checkProgress();
             return;
         }
         else while (!orderedPieces.isEmpty())
             writeNextPiece();
 
         if (haveAll()) cleanUp();
+        else requestMissing();
+    }
+
+    private static class Request {
+        final RequestWindow window;
+        final InetAddress owner;
+        final long sent;  // ns
+        final int backoffs;
+        /** When the last answer arrived (ns), 0 if none did. */
+        long heard = 0;
+
+        Request(RequestWindow window, InetAddress owner, long sent, int backoffs) {
+            this.window = window;
+            this.owner = owner;
+            this.sent = sent;
+            this.backoffs = backoffs;
+        }
     }
 
 }
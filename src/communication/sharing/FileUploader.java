@@ -1,100 +1,198 @@
 package communication.sharing;
 
 import communication.structures.Message;
+import communication.structures.MessageCodec;
 import fileman.FileHandles;
+import fileman.hash.MerkleTree;
+import util.PeriodicTask;
 
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
-import java.util.PriorityQueue;
-import java.util.Set;
+import java.util.Iterator;
 
 import static communication.discovery.ListResponseHandler.MAX_PERIODS;
 import static communication.discovery.ListResponseHandler.PERIOD;
-import static communication.interaction.SocketInitializer.isRunning;
 import static communication.interaction.SocketInitializer.unicastMessage;
+import static communication.structures.Message.Types.BLOCK_DATA;
+import static communication.structures.Message.Types.BLOCK_REQUEST;
 import static communication.structures.Message.Types.PIECE_DATA;
 import static fileman.torrent.BufferedRandomFile.MAX_BUFFERS;
+import static util.CommonlyUsed.BLOCK_SIZE;
 import static util.CommonlyUsed.print;
-import static util.Logger.log;
 
-public class FileUploader extends Thread {
+public class FileUploader extends PeriodicTask {
 
     private static final LinkedHashMap<InetAddress, FileUploader> RESPONDERS = new LinkedHashMap<>();
 
-    static {
-        new Thread(FileUploader::runner).start();
-    }
-
-    /** Periodically runs the threads. */
-    private static void runner() {
-        while (isRunning()) {
-            Set<InetAddress> requesters = RESPONDERS.keySet();
-            for (InetAddress requester : requesters) {
-                FileUploader uploader = RESPONDERS.get(requester);
-                State s = uploader.getState();
-                if (s == State.NEW) uploader.start();
-                else if (s == State.TERMINATED) {
-                    RESPONDERS.put(requester, new FileUploader(uploader));
-                    RESPONDERS.get(requester).start();
-                }
-            }
-            try {
-                Thread.sleep(PERIOD);
-            }
-            catch (InterruptedException e) {
-                log(e);
-            }
-        }
-    }
-
     public static void enqueueRequest(Message m) {
         InetAddress sender = m.getSender();
         if (!RESPONDERS.containsKey(sender)) {
             print("LACKING KEY=====================", sender);
-            RESPONDERS.put(sender, new FileUploader(sender));
+            FileUploader uploader = new FileUploader(sender);
+            RESPONDERS.put(sender, uploader);
+            uploader.start(PERIOD);
         }
 
         FileUploader uploader = RESPONDERS.get(sender);
-        uploader.requests.add(m);
+        synchronized (uploader.requests) {
+            // The requests sent before this one were already counted as in flight by the requester.
+            if (m.getCredits() != Message.NO_CREDITS) uploader.credits = Math.max(uploader.credits, m.getCredits());
+            // A newer request for the same piece says best what is still missing.
+            uploader.requests.put(keyOf(m), m);
+        }
+    }
+
+    private static String keyOf(Message request) {
+        return request.getTorrentID() + '\n' + request.getFilename() + '\n' + request.getPieceID();
+    }
+
+    /** @return the congestion state of the upload to every requester */
+    public static String getStats() {
+        StringBuilder stats = new StringBuilder("{");
+        for (FileUploader uploader : RESPONDERS.values())
+            stats.append(stats.length() == 1 ? "" : ", ").append(uploader.requester).append('=').append(uploader.congestion);
+        return stats.append('}').toString();
+    }
+
+    /** Takes in the acknowledgement of a piece or block, and sends more if it made room in the congestion window. */
+    public static void acknowledge(Message m) {
+        FileUploader uploader = RESPONDERS.get(m.getSender());
+        if (uploader == null) return;
+        uploader.congestion.acknowledged(m.getSequence(), m.getDelay());
+        if (uploader.hasWork() && uploader.congestion.canSend()) uploader.runNow();
     }
 
     private int periods = 0;
     private boolean recentlyResponded = false;
     private InetAddress requester;
-    private PriorityQueue<Message> requests = new PriorityQueue<>();
+    /**
+     * The number of requests that may still be answered, raised to the free slots of the requester's window
+     * with every request and used up one per answered request. Accessed under the lock of the requests.
+     */
+    private int credits = Message.NO_CREDITS;
+    private final CongestionController congestion = new CongestionController();
+    /** The requests in the order they came, at most one per piece. */
+    private final LinkedHashMap<String, Message> requests = new LinkedHashMap<>();
+    /** The block request being answered when the congestion window filled up, with its piece and unsent blocks. */
+    private volatile Message partial;
+    private byte[] partialData;
+    private byte[][] partialProof;
+    private long partialBlocks;
     private FileUploader(InetAddress requester) {
         this.requester = requester;
     }
-    private FileUploader(FileUploader old) {
-        this.recentlyResponded = old.recentlyResponded;
-        this.periods = old.periods;
-        this.requester = old.requester;
-        this.requests = old.requests;
+
+    /** @return true if a newer request for the same piece came, which says best what is still missing */
+    private boolean isSuperseded(Message request) {
+        synchronized (requests) {
+            return requests.containsKey(keyOf(request));
+        }
+    }
+
+    private boolean hasWork() {
+        synchronized (requests) {
+            return partial != null || !requests.isEmpty();
+        }
+    }
+
+    /** @return true if a request may be answered, always for a requester in the old format, which has no credits */
+    private boolean hasCredits() {
+        synchronized (requests) {
+            return credits == Message.NO_CREDITS || credits > 0;
+        }
     }
 
     private void uploadNextPiece() {
         Message message;
-        try {
-            message = requests.poll();
-        }
-        catch (Exception e) {
-            log(e);
-            return;
+        synchronized (requests) {
+            Iterator<Message> first = requests.values().iterator();
+            if (!first.hasNext()) return;
+            message = first.next();
+            first.remove();
+            if (credits > 0) credits--;
         }
         String torrentID = message.getTorrentID();
         String filename = message.getFilename();
         int pieceID = message.getPieceID();
+        if (message.getType() == BLOCK_REQUEST && MessageCodec.isLegacy()) return;  // Blocks have no old format.
+        if (!FileHandles.doIOwn(torrentID, filename, pieceID)) return;  // Withdrawn, or never had it.
         byte[] pieceData = FileHandles.getFilePiece(torrentID, filename, pieceID);
         if (pieceData == null) {
             print("data is null");
             return;
         }
+        byte[][] proof = FileHandles.getProof(torrentID, filename, pieceID);
+        if (proof == null) {
+            print("no proof of " + filename + " " + pieceID);
+            return;
+        }
 
-        Message m = new Message(PIECE_DATA, torrentID, filename, pieceID, pieceData);
-        unicastMessage(m, message.getSender(), message.getPort());
+        if (message.getType() == BLOCK_REQUEST) uploadBlocks(message, pieceData, proof, message.getBlocks());
+        else {
+            Message m = new Message(PIECE_DATA, torrentID, filename, pieceID, pieceData, proof);
+            send(m, message.getSender(), message.getPort());
+        }
         recentlyResponded = true;
     }
 
+    /**
+     * Sends the requested blocks of the piece, each in its own datagram, as long as the congestion window has room.
+     * The blocks left over are sent first in the next run.
+     * The blocks from {@link Message#PROOF_BLOCK} on carry the parts of the proof, so the data blocks carry none,
+     * and those from {@link Message#LEAVES_BLOCK} on the digests of the data blocks, hashed only if they are asked for.
+     */
+    private void uploadBlocks(Message request, byte[] pieceData, byte[][] proof, long blocks) {
+        partial = null;
+        byte[][] leaves = null;
+        while (blocks != 0) {
+            if (!congestion.canSend()) {
+                partialData = pieceData;
+                partialProof = proof;
+                partialBlocks = blocks;
+                partial = request;
+                return;
+            }
+            int block = Long.numberOfTrailingZeros(blocks);
+            blocks &= blocks - 1;
+            ByteBuffer blockData;
+            byte[][] digests = MerkleTree.NO_PROOF;
+            if (block >= Message.LEAVES_BLOCK) {
+                if (leaves == null) leaves = FileHandles.hashBlocks(request.getTorrentID(), pieceData);
+                blockData = ByteBuffer.allocate(0);
+                digests = partOf(leaves, block - Message.LEAVES_BLOCK);
+            }
+            else if (block >= Message.PROOF_BLOCK) {
+                blockData = ByteBuffer.allocate(0);
+                digests = partOf(proof, block - Message.PROOF_BLOCK);
+            }
+            else {
+                int offset = block * BLOCK_SIZE;
+                if (offset >= pieceData.length && block > 0) continue;
+                blockData = ByteBuffer.wrap(pieceData, offset, Math.min(BLOCK_SIZE, pieceData.length - offset)).slice();
+            }
+            Message m = new Message(BLOCK_DATA, request.getTorrentID(), request.getFilename(), request.getPieceID(),
+                    block, blockData, digests);
+            send(m, request.getSender(), request.getPort());
+        }
+    }
+
+    /** @return the digests that go in the given part, empty past their end */
+    private static byte[][] partOf(byte[][] digests, int part) {
+        int from = Math.min(digests.length, part * Message.DIGESTS_PER_BLOCK);
+        return Arrays.copyOfRange(digests, from, Math.min(digests.length, from + Message.DIGESTS_PER_BLOCK));
+    }
+
+    /** Sends a piece or block, numbered for the congestion control unless messages are sent in the old format. */
+    private void send(Message m, InetAddress receiver, int port) {
+        int bytes = m.getPayload().remaining();
+        for (byte[] digest : m.getProof()) bytes += digest.length;
+        if (!MessageCodec.isLegacy())
+            m.setSequence(congestion.sent(bytes), CongestionController.now());
+        unicastMessage(m, receiver, port);
+    }
+
     private void countPeriods() {
         if (recentlyResponded) {
             periods = 0;
@@ -103,16 +201,23 @@ public class FileUploader extends Thread {
         else periods++;
         if (periods < MAX_PERIODS) return;
         RESPONDERS.remove(requester);
+        stop();
     }
 
     @Override
     public void run() {
-        if (requests.isEmpty()) {
+        if (!hasWork()) {
             countPeriods();
             return;
         }
+        if (partial != null && !isSuperseded(partial)) {
+            uploadBlocks(partial, partialData, partialProof, partialBlocks);
+            if (partial != null) return;
+        }
+        partial = null;
         int responses = 0;
-        while (!requests.isEmpty()) {
+        while (partial == null && hasWork() && hasCredits()) {
+            if (!MessageCodec.isLegacy() && !congestion.canSend()) break;
             uploadNextPiece();
             if (++responses == MAX_BUFFERS) break;
         }
@@ -0,0 +1,130 @@
+package communication.sharing;
+
+import communication.structures.Message;
+import fileman.hash.MerkleTree;
+
+import java.nio.ByteBuffer;
+
+import static util.CommonlyUsed.BLOCK_SIZE;
+
+/**
+ * Puts a piece together from its blocks, which may arrive in any order, repeated or not at all.
+ * A bitmap keeps the blocks received so far, so that only the missing ones are requested again.
+ * The piece of a Merkle torrent is complete only once the parts of its proof arrived as well,
+ * in the blocks from {@link Message#PROOF_BLOCK} on.
+ * If such a piece fails its check, the digests of its blocks can be requested as well,
+ * and the blocks found wrong by them discarded, so that only those are requested again.
+ *
+ * @version 1.2
+ */
+class PieceAssembler {
+
+    private static final long PROOF_BLOCKS = ((1L << Message.PROOF_PARTS) - 1) << Message.PROOF_BLOCK;
+    private static final long LEAF_BLOCKS = ((1L << Message.LEAF_PARTS) - 1) << Message.LEAVES_BLOCK;
+
+    private final byte[] data;
+    private final int numberOfBlocks;
+    /** The blocks needed for the piece to be complete. */
+    private long all;
+    private long received = 0;
+    private final byte[][][] proofParts = new byte[Message.PROOF_PARTS][][];
+    private final byte[][][] leafParts = new byte[Message.LEAF_PARTS][][];
+
+    /**
+     * @param pieceLength the length of the piece, shorter than a full piece only at the end of the file
+     * @param proven      true if the piece is to be proven, so the parts of its proof are needed too
+     */
+    PieceAssembler(int pieceLength, boolean proven) {
+        this.data = new byte[pieceLength];
+        this.numberOfBlocks = Math.max(1, (pieceLength + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        long blocks = numberOfBlocks == 64 ? -1L : (1L << numberOfBlocks) - 1;
+        this.all = proven ? blocks | PROOF_BLOCKS : blocks;
+    }
+
+    /**
+     * Copies a received block into the piece, or keeps the part of the proof or of the digests it carries.
+     *
+     * @param block     the index of the block in the piece
+     * @param blockData the block, between position and limit
+     * @param digests   the digests the block carries, empty for a block of data
+     * @return false if the block was already received or does not belong in the piece
+     */
+    boolean add(int block, ByteBuffer blockData, byte[][] digests) {
+        if (block < 0 || block >= Long.SIZE || (all & ~received & (1L << block)) == 0) return false;
+        if (block >= Message.PROOF_BLOCK && digests.length > Message.DIGESTS_PER_BLOCK) return false;
+        if (block >= Message.LEAVES_BLOCK) leafParts[block - Message.LEAVES_BLOCK] = digests;
+        else if (block >= Message.PROOF_BLOCK) proofParts[block - Message.PROOF_BLOCK] = digests;
+        else {
+            int offset = block * BLOCK_SIZE;
+            if (blockData.remaining() != Math.min(BLOCK_SIZE, data.length - offset)) return false;
+            blockData.get(data, offset, blockData.remaining());
+        }
+        received |= 1L << block;
+        return true;
+    }
+
+    boolean isComplete() {
+        return received == all;
+    }
+
+    /** @return the bitmap of the blocks still missing */
+    long getMissing() {
+        return all & ~received;
+    }
+
+    ByteBuffer getPiece() {
+        return ByteBuffer.wrap(data);
+    }
+
+    /** @return true if the digests of the blocks are requested, or already in */
+    boolean hasLeaves() {
+        return (all & LEAF_BLOCKS) != 0;
+    }
+
+    /** Makes the piece incomplete until the digests of its blocks arrive too. */
+    void requestLeaves() {
+        all |= LEAF_BLOCKS;
+    }
+
+    /**
+     * Forgets blocks that turned out wrong, so that they are requested again.
+     *
+     * @param blocks the bitmap of the blocks to forget
+     */
+    void discard(long blocks) {
+        received &= ~blocks;
+    }
+
+    /** @return the proof put together from its parts, empty if the piece is not proven */
+    byte[][] getProof() {
+        return join(proofParts);
+    }
+
+    /** @return the digests of the blocks put together from their parts, back to back */
+    byte[] getLeaves() {
+        byte[][] digests = join(leafParts);
+        int length = digests.length == 0 ? 0 : digests[0].length;
+        byte[] leaves = new byte[digests.length * length];
+        for (int i = 0; i < digests.length; i++) {
+            if (digests[i].length != length) return new byte[0];
+            System.arraycopy(digests[i], 0, leaves, i * length, length);
+        }
+        return leaves;
+    }
+
+    private static byte[][] join(byte[][][] parts) {
+        int length = 0;
+        for (byte[][] part : parts)
+            if (part != null) length += part.length;
+        if (length == 0) return MerkleTree.NO_PROOF;
+
+        byte[][] joined = new byte[length][];
+        int next = 0;
+        for (byte[][] part : parts) {
+            if (part == null) continue;
+            System.arraycopy(part, 0, joined, next, part.length);
+            next += part.length;
+        }
+        return joined;
+    }
+}
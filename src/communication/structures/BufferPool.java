@@ -0,0 +1,65 @@
+package communication.structures;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps a bounded number of reusable buffers of the same size.
+ * Acquiring and releasing a pooled buffer creates no garbage.
+ * When the pool is empty a new buffer is allocated,
+ * and buffers released to a full pool are left to the garbage collector.
+ *
+ * @version 1.0
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final boolean direct;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+
+    /**
+     * @param bufferSize the capacity of every buffer
+     * @param maxPooled  the maximum number of idle buffers kept for reuse
+     * @param direct     whether to allocate direct buffers
+     */
+    public BufferPool(int bufferSize, int maxPooled, boolean direct) {
+        this.bufferSize = bufferSize;
+        this.direct = direct;
+        this.free = new ArrayBlockingQueue<>(maxPooled);
+    }
+
+    /** @return a cleared buffer, owned by the caller until it is released */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = free.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            return direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+        }
+        reused.incrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer to the pool.
+     * The caller must not use the buffer, or any view of it, afterwards.
+     *
+     * @param buffer a buffer previously acquired from this pool
+     */
+    public void release(ByteBuffer buffer) {
+        free.offer(buffer);
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    @Override
+    public String toString() {
+        return "{bufferSize=" + bufferSize + ", idle=" + free.size() +
+                ", allocated=" + allocated.get() + ", reused=" + reused.get() + "}";
+    }
+}
@@ -1,25 +1,59 @@
 package communication.structures;
 
+import fileman.hash.DigestAlgorithm;
+import fileman.hash.MerkleTree;
+
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static communication.structures.Message.Types.*;
+import static communication.structures.MessageCodec.SEPARATOR;
+import static util.CommonlyUsed.BLOCK_SIZE;
 import static util.CommonlyUsed.PIECE_SIZE;
 import static util.CommonlyUsed.print;
 
 /**
  * Contains a parsed packet received over the network or a formatted message ready to be send.
- * Format is: "TYPE:fields:CONTENTS".
+ * Encoding and decoding is done by {@link MessageCodec}.
+ * Pieces of Merkle torrents carry the proof that verifies them against the root of their file.
+ * <p>
+ * Pieces can also be exchanged in blocks of {@link util.CommonlyUsed#BLOCK_SIZE} bytes, each small enough for a single datagram
+ * on a usual link, so that a lost fragment only costs its block instead of the whole piece.
+ * A block request names the blocks of the piece it wants in a bitmap.
+ * The Merkle proof of a piece is split over the blocks from {@link #PROOF_BLOCK} on, past the data,
+ * which carry digests instead of data, so that no datagram is larger than a block and its header.
+ * The blocks from {@link #LEAVES_BLOCK} on carry the digests of the blocks of the piece in the same way,
+ * requested only to find out which blocks of a piece that failed its check were wrong.
+ * Piece and block requests can carry the credits of the requester, see {@link RequestWindow}.
+ * Pieces and blocks carry a sequence number and the time they were sent, and are acknowledged with the delay
+ * the receiver measured, for the congestion control of the sender.
  *
- * @version 3.0
+ * @version 4.5
  */
 public class Message implements Comparable {
 
     public static final int MAX_MESSAGE_LENGTH;
-    private static final String SEPARATOR = "___:";
+    /** The credits of a request that does not advertise any. */
+    public static final int NO_CREDITS = -1;
+    /** The sequence number of data that is not sequenced, as in the old format. */
+    public static final int NO_SEQUENCE = -1;
+    /** The first block that carries a part of the proof of a piece, right after the blocks of its data. */
+    public static final int PROOF_BLOCK = MerkleTree.BLOCKS_PER_PIECE;
+    /** The most digests a block carries, as many as fit in the data of a block. */
+    public static final int DIGESTS_PER_BLOCK = BLOCK_SIZE / DigestAlgorithm.MAX_LENGTH;
+    /** The number of blocks the proof is split over, enough for the longest one. */
+    public static final int PROOF_PARTS = (MerkleTree.MAX_PROOF_LENGTH + DIGESTS_PER_BLOCK - 1) / DIGESTS_PER_BLOCK;
+    /** The first block that carries a part of the digests of the blocks of a piece, right after its proof. */
+    public static final int LEAVES_BLOCK = PROOF_BLOCK + PROOF_PARTS;
+    /** The number of blocks the digests of the blocks of a piece are split over. */
+    public static final int LEAF_PARTS = (MerkleTree.BLOCKS_PER_PIECE + DIGESTS_PER_BLOCK - 1) / DIGESTS_PER_BLOCK;
     private static final int MAX_NUMBER_OF_SEPARATORS = 4;
     private static final int MAX_IDENTIFIER_LENGTH = 100;
     private static final int MAX_NUMBER_OF_IDENTIFIERS = 3;
+    private static final int MAX_PROOF_BYTES = MerkleTree.MAX_PROOF_LENGTH * DigestAlgorithm.MAX_LENGTH + 2;
+    private static final int MAX_SEQUENCE_BYTES = 5 + 4;  // varint sequence number and send time
 
     static {
         Types[] allTypes = Types.values();
@@ -32,72 +66,74 @@ public class Message implements Comparable {
         MAX_MESSAGE_LENGTH = maxTypeLength +
                 SEPARATOR.getBytes().length * MAX_NUMBER_OF_SEPARATORS +
                 MAX_IDENTIFIER_LENGTH * MAX_NUMBER_OF_IDENTIFIERS +
-                PIECE_SIZE;
-        // longest message is TYPE:torrent ID:filename:piece index:piece
+                MAX_PROOF_BYTES +
+                MAX_SEQUENCE_BYTES +
+                PIECE_SIZE +
+                MessageCodec.CHECKSUM_LENGTH;
+        // longest message is TYPE:torrent ID:filename:piece index:proof:piece
     }
 
     private InetAddress sender;
     private int port = -1;
-    private Types type;
-    private String torrentID;
-    private String filename;
-    private int pieceID;
-    private int totalPieces;
-    private byte[] pieceData;
+    Types type;
+    String torrentID;
+    String filename;
+    int pieceID;
+    int totalPieces;
+    int block;
+    /** The blocks of the piece a block request asks for, a bit per block. */
+    long blocks;
+    /** The number of pieces the requester can take at once. */
+    int credits = NO_CREDITS;
+    /** The sequence number of a piece or block, or the one acknowledged. */
+    int sequence = NO_SEQUENCE;
+    /** The time a piece or block was sent, or the one-way delay acknowledged (us). */
+    int time;
+    ByteBuffer payload;
+    byte[][] proof = MerkleTree.NO_PROOF;
+
+    /** The pool that the received buffer is returned to once no one references this message. */
+    private BufferPool pool;
+    private ByteBuffer buffer;
+    private final AtomicInteger references = new AtomicInteger(1);
     public Message(DatagramPacket packet) throws UnrecognizedFormatException {
-        sender = packet.getAddress();
-        port = packet.getPort();
-
-        String message = new String(packet.getData(), 0, packet.getLength());
-        String[] parts = message.split(SEPARATOR);
+        this(ByteBuffer.wrap(packet.getData(), packet.getOffset(), packet.getLength()), packet.getAddress(), packet.getPort());
+    }
 
-        try {
-            type = Types.valueOf(parts[0]);
-        }
-        catch (IllegalArgumentException e) {
-            throw new UnrecognizedFormatException("Message " + parts[0] + " not recognized.");
-        }
+    /**
+     * Decodes a received message.
+     * The payload of the message is a view of the given buffer,
+     * so the buffer must not be reused while the message is in use.
+     *
+     * @param data   the received bytes, between position and limit
+     * @param sender the sender of the message
+     * @param port   the port of the sender
+     * @throws UnrecognizedFormatException if the bytes are not a valid message
+     */
+    public Message(ByteBuffer data, InetAddress sender, int port) throws UnrecognizedFormatException {
+        this.sender = sender;
+        this.port = port;
+        MessageCodec.decode(data, this);
+    }
 
-        switch (type) {
-            case HELLO:
-            case TIMED_OUT:
-                throwExceptionIfDifferent(parts.length, 1, message);
-                break;
-            case LIST_REQUEST:
-                throwExceptionIfDifferent(parts.length, 2, message);
-                pieceID = Integer.parseInt(parts[1]);
-                break;
-            case LIST_RESPONSE:
-                pieceID = Integer.parseInt(parts[1]);
-                totalPieces = Integer.parseInt(parts[2]);
-                parseData(packet, parts);
-                break;
-            case TORRENT_REQUEST:
-                throwExceptionIfDifferent(parts.length, 3, message);
-                torrentID = parts[1];
-                pieceID = Integer.parseInt(parts[2]);
-                break;
-            case TORRENT_FILE:
-                throwExceptionIfDifferent(parts.length, 4, message);
-                torrentID = parts[1];
-                pieceID = Integer.parseInt(parts[2]);
-                parseData(packet, parts);
-                break;
-            case WHO_HAS:
-            case I_HAVE:
-            case PIECE_REQUEST:
-                throwExceptionIfDifferent(parts.length, 4, message);
-                torrentID = parts[1];
-                filename = parts[2];
-                pieceID = Integer.parseInt(parts[3]);
-                break;
-            case PIECE_DATA:
-                throwExceptionIfDifferent(parts.length, 5, message);
-                torrentID = parts[1];
-                filename = parts[2];
-                pieceID = Integer.parseInt(parts[3]);
-                parseData(packet, parts);
-                break;
+    /**
+     * Decodes a message received into a buffer of the given pool.
+     * The message starts with one reference, owned by the caller.
+     * Messages without payload return the buffer straight away, as all their fields are already parsed.
+     *
+     * @param data   the received bytes, between position and limit
+     * @param sender the sender of the message
+     * @param port   the port of the sender
+     * @param pool   the pool to return the buffer to when the message is released
+     * @throws UnrecognizedFormatException if the bytes are not a valid message,
+     *                                     in which case the buffer still belongs to the caller
+     */
+    public Message(ByteBuffer data, InetAddress sender, int port, BufferPool pool) throws UnrecognizedFormatException {
+        this(data, sender, port);
+        if (payload == null) pool.release(data);
+        else {
+            this.pool = pool;
+            this.buffer = data;
         }
     }
     public Message(String s) {
@@ -123,7 +159,7 @@ public class Message implements Comparable {
         this.type = type;
         this.pieceID = pieceID;
         this.totalPieces = totalPieces;
-        this.pieceData = pieceData.getBytes();
+        this.payload = ByteBuffer.wrap(pieceData.getBytes());
 
         if (type != LIST_RESPONSE)
             print("Incorrect message constructor.");
@@ -142,7 +178,7 @@ public class Message implements Comparable {
         this.type = type;
         this.torrentID = torrentID;
         this.pieceID = pieceID;
-        this.pieceData = pieceData;
+        this.payload = ByteBuffer.wrap(pieceData);
         if (type != TORRENT_FILE)
             print("Incorrect message constructor.");
     }
@@ -157,28 +193,64 @@ public class Message implements Comparable {
             print("Incorrect message constructor.");
     }
 
+    public Message(Types type, String torrentID, String filename, int pieceID, int credits) {
+        this(type, torrentID, filename, pieceID);
+        this.credits = credits;
+        if (type != PIECE_REQUEST)
+            print("Incorrect message constructor.");
+    }
+
     public Message(Types type, String torrentID, String filename, int pieceID, byte[] pieceData) {
+        this(type, torrentID, filename, pieceID, pieceData, MerkleTree.NO_PROOF);
+    }
+
+    public Message(Types type, String torrentID, String filename, int pieceID, byte[] pieceData, byte[][] proof) {
         this.type = type;
+        this.proof = proof;
         this.torrentID = torrentID;
         this.filename = filename;
         this.pieceID = pieceID;
-        this.pieceData = pieceData;
+        this.payload = ByteBuffer.wrap(pieceData);
         if (type != PIECE_DATA)
             print("Incorrect message constructor.");
     }
 
-    private static void throwExceptionIfDifferent(int received, int expected, String message) throws UnrecognizedFormatException {
-        if (received != expected)
-            throw new UnrecognizedFormatException("Expected " + expected + " parts, got " + received + " in " + message + ".");
+    /* Congestion control constructors. */
+    public Message(Types type, int sequence, int delay) {
+        this.type = type;
+        this.sequence = sequence;
+        this.time = delay;
+        if (type != DATA_ACK)
+            print("Incorrect message constructor.");
     }
 
-    private void parseData(DatagramPacket packet, String[] parts) {
-        StringBuilder header = new StringBuilder();
-        for (int i = 0; i < parts.length - 1; i++)
-            header.append(parts[i]).append(SEPARATOR);
+    /* Block exchange constructors. */
+    public Message(Types type, String torrentID, String filename, int pieceID, long blocks, int credits) {
+        this.type = type;
+        this.torrentID = torrentID;
+        this.filename = filename;
+        this.pieceID = pieceID;
+        this.blocks = blocks;
+        this.credits = credits;
+        if (type != BLOCK_REQUEST)
+            print("Incorrect message constructor.");
+    }
 
-        pieceData = new byte[packet.getLength() - header.length()];
-        System.arraycopy(packet.getData(), header.length(), pieceData, 0, pieceData.length);
+    /**
+     * @param blockData the block, between position and limit
+     * @param proof     a part of the proof or of the digests of the blocks of the piece, empty for data
+     */
+    public Message(Types type, String torrentID, String filename, int pieceID, int block, ByteBuffer blockData,
+                   byte[][] proof) {
+        this.type = type;
+        this.proof = proof;
+        this.torrentID = torrentID;
+        this.filename = filename;
+        this.pieceID = pieceID;
+        this.block = block;
+        this.payload = blockData;
+        if (type != BLOCK_DATA)
+            print("Incorrect message constructor.");
     }
 
     public InetAddress getSender() {
@@ -209,54 +281,101 @@ public class Message implements Comparable {
         return totalPieces;
     }
 
+    /** @return the index of the block in its piece */
+    public int getBlock() {
+        return block;
+    }
+
+    /** @return the bitmap of the requested blocks */
+    public long getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Numbers a piece or block that is about to be sent, and stamps it with the time.
+     *
+     * @param sequence the sequence number
+     * @param time     the current time (us)
+     */
+    public void setSequence(int sequence, int time) {
+        this.sequence = sequence;
+        this.time = time;
+    }
+
+    /** @return the sequence number of the piece or block, or the one acknowledged, or {@link #NO_SEQUENCE} */
+    public int getSequence() {
+        return sequence;
+    }
+
+    /** @return the time the piece or block was sent (us) */
+    public int getTime() {
+        return time;
+    }
+
+    /** @return the one-way delay acknowledged (us) */
+    public int getDelay() {
+        return time;
+    }
+
+    /** @return the number of pieces the requester can take at once, or {@link #NO_CREDITS} */
+    public int getCredits() {
+        return credits;
+    }
+
+    /** @return the Merkle proof of the piece, empty if there is none */
+    public byte[][] getProof() {
+        return proof;
+    }
+
+    /**
+     * Adds a reference to this message.
+     * Must be called by anyone who keeps the payload after the receiving thread has released the message.
+     *
+     * @return this message
+     */
+    public Message retain() {
+        references.incrementAndGet();
+        return this;
+    }
+
+    /**
+     * Drops a reference to this message.
+     * When no references remain, the payload is no longer valid and the buffer goes back to the pool.
+     */
+    public void release() {
+        if (pool == null || references.decrementAndGet() != 0) return;
+        payload = null;
+        BufferPool p = pool;
+        pool = null;
+        p.release(buffer);
+        buffer = null;
+    }
+
     public byte[] getPieceData() {
-        return pieceData;
+        if (payload == null) return null;
+        if (payload.hasArray() && payload.arrayOffset() == 0 && payload.remaining() == payload.array().length)
+            return payload.array();
+        byte[] data = new byte[payload.remaining()];
+        payload.duplicate().get(data);
+        return data;
     }
 
-    public byte[] asBytes() {
-        String s = SEPARATOR;
-        String header = "";
-        boolean hasPayload = false;
-        switch (type) {
-            case HELLO:
-            case TIMED_OUT:
-                header = type.toString();
-                break;
-            case LIST_REQUEST:
-                header = type + s + pieceID;
-                break;
-            case LIST_RESPONSE:
-                header = type + s + pieceID + s + totalPieces + s;
-                hasPayload = true;
-                break;
-            case TORRENT_REQUEST:
-                header = type + s + torrentID + s + pieceID;
-                break;
-            case TORRENT_FILE:
-                header = type + s + torrentID + s + pieceID + s;
-                hasPayload = true;
-                break;
-            case WHO_HAS:
-            case I_HAVE:
-            case PIECE_REQUEST:
-                header = type + s + torrentID + s + filename + s + pieceID;
-                break;
-            case PIECE_DATA:
-                header = type + s + torrentID + s + filename + s + pieceID + s;
-                hasPayload = true;
-                break;
-        }
+    /** @return a view of the payload that can be consumed without affecting the message, or null if there is none */
+    public ByteBuffer getPayload() {
+        return payload == null ? null : payload.duplicate();
+    }
 
-        byte[] headerBytes = header.getBytes();
-        if (!hasPayload) return headerBytes;
-        byte[] msg = new byte[headerBytes.length + pieceData.length];
-        System.arraycopy(headerBytes, 0, msg, 0, headerBytes.length);
-        System.arraycopy(pieceData, 0, msg, headerBytes.length, pieceData.length);
+    public byte[] asBytes() {
+        ByteBuffer out = ByteBuffer.allocate(MAX_MESSAGE_LENGTH);
+        MessageCodec.encode(this, out);
+        byte[] msg = new byte[out.position()];
+        System.arraycopy(out.array(), 0, msg, 0, msg.length);
         return msg;
     }
 
     @Override
     public String toString() {
+        if (type == BLOCK_DATA) return "{" + type + " " + torrentID + " " + filename + " " + pieceID + "/" + block + "}";
         return "{" + type + " " + torrentID + " " + filename + " " + pieceID + "}";
     }
 
@@ -276,7 +395,9 @@ public class Message implements Comparable {
         LIST_REQUEST, LIST_RESPONSE,  // For lists of torrent IDs.
         TORRENT_REQUEST, TORRENT_FILE, // For .torrent files.
         WHO_HAS, I_HAVE,  // For ownership.
-        PIECE_REQUEST, PIECE_DATA  // For pieces.
+        PIECE_REQUEST, PIECE_DATA,  // For pieces.
+        BLOCK_REQUEST, BLOCK_DATA,  // For blocks of pieces, in the binary format only.
+        DATA_ACK  // For congestion control, in the binary format only.
     }
 
     public static class UnrecognizedFormatException extends Exception {
@@ -0,0 +1,479 @@
+package communication.structures;
+
+import fileman.hash.DigestAlgorithm;
+import fileman.hash.MerkleTree;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32C;
+
+import static communication.structures.Message.Types.*;
+import static util.CommonlyUsed.print;
+
+/**
+ * Encodes and decodes {@link Message}s to and from their wire representation.
+ * Binary format is: MAGIC, type ordinal, length-prefixed ids and varint numbers, followed by the payload.
+ * Pieces also carry a Merkle proof before the payload, as a varint count of digests followed,
+ * if there are any, by their length in a byte and the digests.
+ * The payload of a decoded message is a slice of the received buffer and is never copied.
+ * Messages in the old "TYPE___:fields___:CONTENTS" format are still recognized,
+ * and can be sent in that format to peers that have not been updated. The old format carries no proofs.
+ * <p>
+ * Every binary datagram ends with a CRC-32C of the bytes before it, added by {@link #appendChecksum}
+ * and checked by {@link #checkAndStripChecksum} before a message is built,
+ * so damaged or truncated datagrams are dropped before any work is done on them.
+ * Datagrams in the old format have no checksum.
+ * <p>
+ * Block requests and blocks exist only in the binary format.
+ * A block request carries the bitmap of the wanted blocks as a long,
+ * and a block carries its index after the piece index, then a proof and the payload like a piece.
+ * Blocks past the data of a piece carry digests, a part of its proof or of the digests of its blocks, and no payload,
+ * see {@link Message#PROOF_BLOCK}.
+ * Piece and block requests end with the credits of the requester as a varint, if it advertises any.
+ * Pieces and blocks carry a varint sequence number and a send time in us before the proof,
+ * and an acknowledgement carries the sequence number and the measured delay.
+ *
+ * @version 1.7
+ */
+public class MessageCodec {
+
+    /** First byte of every binary message. Old messages always start with an upper case letter. */
+    static final byte MAGIC = (byte) 0xFD;
+    static final String SEPARATOR = "___:";
+
+    private static final Message.Types[] TYPES = Message.Types.values();
+    private static final int MAX_VARINT_LENGTH = 5;
+
+    private static volatile boolean legacy = Boolean.getBoolean("fds.legacy");
+
+    /** The length of the CRC-32C that ends every binary datagram. */
+    static final int CHECKSUM_LENGTH = 4;
+    private static final ThreadLocal<CRC32C> CHECKSUMS = ThreadLocal.withInitial(CRC32C::new);
+
+    /** @return true if outgoing messages use the old string format */
+    public static boolean isLegacy() {
+        return legacy;
+    }
+
+    /**
+     * Selects the format of outgoing messages.
+     * Incoming messages are always accepted in both formats.
+     *
+     * @param legacy true to send in the old string format, false to send in the binary format
+     */
+    public static void setLegacy(boolean legacy) {
+        MessageCodec.legacy = legacy;
+    }
+
+    /**
+     * Appends the checksum of the encoded datagram, unless it is in the old format.
+     *
+     * @param out the buffer a message was just encoded into, with its position at the end of the message
+     */
+    public static void appendChecksum(ByteBuffer out) {
+        if (legacy) return;
+        CRC32C crc = CHECKSUMS.get();
+        crc.reset();
+        ByteBuffer encoded = out.duplicate();
+        encoded.flip();
+        crc.update(encoded);
+        out.putInt((int) crc.getValue());
+    }
+
+    /**
+     * Checks the checksum of a received binary datagram and leaves it out of the buffer.
+     * Datagrams in the old format are accepted as they are.
+     *
+     * @param in the received datagram, between position and limit
+     * @return false if the datagram is damaged
+     */
+    public static boolean checkAndStripChecksum(ByteBuffer in) {
+        if (!in.hasRemaining() || in.get(in.position()) != MAGIC) return true;
+        int end = in.limit() - CHECKSUM_LENGTH;
+        if (end <= in.position()) return false;
+
+        CRC32C crc = CHECKSUMS.get();
+        crc.reset();
+        ByteBuffer encoded = in.duplicate();
+        encoded.limit(end);
+        crc.update(encoded);
+        if (in.getInt(end) != (int) crc.getValue()) return false;
+        in.limit(end);
+        return true;
+    }
+
+    /* Primitive writers and readers. */
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static int getVarint(ByteBuffer in) throws Message.UnrecognizedFormatException {
+        int value = 0;
+        for (int i = 0; i < MAX_VARINT_LENGTH; i++) {
+            byte b = in.get();
+            value |= (b & 0x7F) << (7 * i);
+            if (b >= 0) return value;
+        }
+        throw new Message.UnrecognizedFormatException("Malformed varint.");
+    }
+
+    private static void putString(ByteBuffer out, String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        putVarint(out, bytes.length);
+        out.put(bytes);
+    }
+
+    private static String getString(ByteBuffer in) throws Message.UnrecognizedFormatException {
+        int length = getVarint(in);
+        if (length > in.remaining())
+            throw new Message.UnrecognizedFormatException("Identifier of " + length + " bytes exceeds the message.");
+        String s;
+        if (in.hasArray())
+            s = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        else {
+            byte[] bytes = new byte[length];
+            in.duplicate().get(bytes);
+            s = new String(bytes, StandardCharsets.UTF_8);
+        }
+        in.position(in.position() + length);
+        return s;
+    }
+
+    private static void putProof(ByteBuffer out, byte[][] proof) {
+        putVarint(out, proof.length);
+        if (proof.length == 0) return;
+        out.put((byte) proof[0].length);
+        for (byte[] node : proof) out.put(node);
+    }
+
+    private static byte[][] getProof(ByteBuffer in) throws Message.UnrecognizedFormatException {
+        int length = getVarint(in);
+        if (length == 0) return MerkleTree.NO_PROOF;
+        if (length > MerkleTree.MAX_PROOF_LENGTH)
+            throw new Message.UnrecognizedFormatException("Proof of " + length + " digests is too long.");
+        int digestLength = in.get() & 0xFF;
+        if (digestLength == 0 || digestLength > DigestAlgorithm.MAX_LENGTH)
+            throw new Message.UnrecognizedFormatException("Proof digests of " + digestLength + " bytes.");
+        byte[][] proof = new byte[length][digestLength];
+        for (byte[] node : proof) in.get(node);
+        return proof;
+    }
+
+    private static void putCredits(ByteBuffer out, int credits) {
+        if (credits != Message.NO_CREDITS) putVarint(out, credits);
+    }
+
+    /** Credits are optional, requests from peers that do not advertise any end before them. */
+    private static int getCredits(ByteBuffer in) throws Message.UnrecognizedFormatException {
+        return in.hasRemaining() ? getVarint(in) : Message.NO_CREDITS;
+    }
+
+    /**
+     * Decodes the message contained between the position and the limit of the given buffer.
+     * The payload of the message, if any, is a view of the buffer.
+     *
+     * @param in the received bytes
+     * @param m  the message to fill in
+     * @throws Message.UnrecognizedFormatException if the bytes are not a valid message
+     */
+    static void decode(ByteBuffer in, Message m) throws Message.UnrecognizedFormatException {
+        if (!in.hasRemaining())
+            throw new Message.UnrecognizedFormatException("Empty message.");
+        if (in.get(in.position()) != MAGIC) {
+            decodeLegacy(in, m);
+            return;
+        }
+
+        try {
+            in.get();  // MAGIC
+            int ordinal = in.get() & 0xFF;
+            if (ordinal >= TYPES.length)
+                throw new Message.UnrecognizedFormatException("Message type " + ordinal + " not recognized.");
+            m.type = TYPES[ordinal];
+
+            switch (m.type) {
+                case HELLO:
+                case TIMED_OUT:
+                    break;
+                case LIST_REQUEST:
+                    m.pieceID = getVarint(in);
+                    break;
+                case LIST_RESPONSE:
+                    m.pieceID = getVarint(in);
+                    m.totalPieces = getVarint(in);
+                    m.payload = in.slice();
+                    break;
+                case TORRENT_REQUEST:
+                    m.torrentID = getString(in);
+                    m.pieceID = getVarint(in);
+                    break;
+                case TORRENT_FILE:
+                    m.torrentID = getString(in);
+                    m.pieceID = getVarint(in);
+                    m.payload = in.slice();
+                    break;
+                case WHO_HAS:
+                case I_HAVE:
+                    m.torrentID = getString(in);
+                    m.filename = getString(in);
+                    m.pieceID = getVarint(in);
+                    break;
+                case PIECE_REQUEST:
+                    m.torrentID = getString(in);
+                    m.filename = getString(in);
+                    m.pieceID = getVarint(in);
+                    m.credits = getCredits(in);
+                    break;
+                case PIECE_DATA:
+                    m.torrentID = getString(in);
+                    m.filename = getString(in);
+                    m.pieceID = getVarint(in);
+                    m.sequence = getVarint(in);
+                    m.time = in.getInt();
+                    m.proof = getProof(in);
+                    m.payload = in.slice();
+                    break;
+                case BLOCK_REQUEST:
+                    m.torrentID = getString(in);
+                    m.filename = getString(in);
+                    m.pieceID = getVarint(in);
+                    m.blocks = in.getLong();
+                    m.credits = getCredits(in);
+                    break;
+                case BLOCK_DATA:
+                    m.torrentID = getString(in);
+                    m.filename = getString(in);
+                    m.pieceID = getVarint(in);
+                    m.block = getVarint(in);
+                    if (m.block >= Message.LEAVES_BLOCK + Message.LEAF_PARTS)
+                        throw new Message.UnrecognizedFormatException("Block " + m.block + " out of the piece.");
+                    m.sequence = getVarint(in);
+                    m.time = in.getInt();
+                    m.proof = getProof(in);
+                    m.payload = in.slice();
+                    break;
+                case DATA_ACK:
+                    m.sequence = getVarint(in);
+                    m.time = in.getInt();
+                    break;
+            }
+        }
+        catch (BufferUnderflowException e) {
+            throw new Message.UnrecognizedFormatException("Message of type " + m.type + " is truncated.");
+        }
+    }
+
+    /**
+     * Writes the given message to the buffer, starting at its position.
+     * The payload is copied exactly once, directly after the header.
+     *
+     * @param m   the message to encode
+     * @param out the buffer to write to
+     */
+    public static void encode(Message m, ByteBuffer out) {
+        if (legacy) {
+            encodeLegacy(m, out);
+            return;
+        }
+
+        out.put(MAGIC);
+        out.put((byte) m.type.ordinal());
+        switch (m.type) {
+            case HELLO:
+            case TIMED_OUT:
+                break;
+            case LIST_REQUEST:
+                putVarint(out, m.pieceID);
+                break;
+            case LIST_RESPONSE:
+                putVarint(out, m.pieceID);
+                putVarint(out, m.totalPieces);
+                out.put(m.payload.duplicate());
+                break;
+            case TORRENT_REQUEST:
+                putString(out, m.torrentID);
+                putVarint(out, m.pieceID);
+                break;
+            case TORRENT_FILE:
+                putString(out, m.torrentID);
+                putVarint(out, m.pieceID);
+                out.put(m.payload.duplicate());
+                break;
+            case WHO_HAS:
+            case I_HAVE:
+                putString(out, m.torrentID);
+                putString(out, m.filename);
+                putVarint(out, m.pieceID);
+                break;
+            case PIECE_REQUEST:
+                putString(out, m.torrentID);
+                putString(out, m.filename);
+                putVarint(out, m.pieceID);
+                putCredits(out, m.credits);
+                break;
+            case PIECE_DATA:
+                putString(out, m.torrentID);
+                putString(out, m.filename);
+                putVarint(out, m.pieceID);
+                putVarint(out, m.sequence);
+                out.putInt(m.time);
+                putProof(out, m.proof);
+                out.put(m.payload.duplicate());
+                break;
+            case BLOCK_REQUEST:
+                putString(out, m.torrentID);
+                putString(out, m.filename);
+                putVarint(out, m.pieceID);
+                out.putLong(m.blocks);
+                putCredits(out, m.credits);
+                break;
+            case BLOCK_DATA:
+                putString(out, m.torrentID);
+                putString(out, m.filename);
+                putVarint(out, m.pieceID);
+                putVarint(out, m.block);
+                putVarint(out, m.sequence);
+                out.putInt(m.time);
+                putProof(out, m.proof);
+                out.put(m.payload.duplicate());
+                break;
+            case DATA_ACK:
+                putVarint(out, m.sequence);
+                out.putInt(m.time);
+                break;
+        }
+    }
+
+    /* Old string format. */
+    private static void throwExceptionIfDifferent(int received, int expected, String message) throws Message.UnrecognizedFormatException {
+        if (received != expected)
+            throw new Message.UnrecognizedFormatException("Expected " + expected + " parts, got " + received + " in " + message + ".");
+    }
+
+    private static void parseData(ByteBuffer in, String[] parts, Message m) {
+        int headerLength = 0;
+        for (int i = 0; i < parts.length - 1; i++)
+            headerLength += parts[i].getBytes().length + SEPARATOR.length();
+
+        ByteBuffer data = in.duplicate();
+        data.position(in.position() + headerLength);
+        m.payload = data.slice();
+    }
+
+    private static void decodeLegacy(ByteBuffer in, Message m) throws Message.UnrecognizedFormatException {
+        byte[] bytes;
+        int offset;
+        if (in.hasArray()) {
+            bytes = in.array();
+            offset = in.arrayOffset() + in.position();
+        }
+        else {
+            bytes = new byte[in.remaining()];
+            in.duplicate().get(bytes);
+            offset = 0;
+        }
+        String message = new String(bytes, offset, in.remaining());
+        String[] parts = message.split(SEPARATOR);
+
+        try {
+            m.type = Message.Types.valueOf(parts[0]);
+        }
+        catch (IllegalArgumentException e) {
+            throw new Message.UnrecognizedFormatException("Message " + parts[0] + " not recognized.");
+        }
+
+        switch (m.type) {
+            case HELLO:
+            case TIMED_OUT:
+                throwExceptionIfDifferent(parts.length, 1, message);
+                break;
+            case LIST_REQUEST:
+                throwExceptionIfDifferent(parts.length, 2, message);
+                m.pieceID = Integer.parseInt(parts[1]);
+                break;
+            case LIST_RESPONSE:
+                m.pieceID = Integer.parseInt(parts[1]);
+                m.totalPieces = Integer.parseInt(parts[2]);
+                parseData(in, parts, m);
+                break;
+            case TORRENT_REQUEST:
+                throwExceptionIfDifferent(parts.length, 3, message);
+                m.torrentID = parts[1];
+                m.pieceID = Integer.parseInt(parts[2]);
+                break;
+            case TORRENT_FILE:
+                throwExceptionIfDifferent(parts.length, 4, message);
+                m.torrentID = parts[1];
+                m.pieceID = Integer.parseInt(parts[2]);
+                parseData(in, parts, m);
+                break;
+            case WHO_HAS:
+            case I_HAVE:
+            case PIECE_REQUEST:
+                throwExceptionIfDifferent(parts.length, 4, message);
+                m.torrentID = parts[1];
+                m.filename = parts[2];
+                m.pieceID = Integer.parseInt(parts[3]);
+                break;
+            case PIECE_DATA:
+                throwExceptionIfDifferent(parts.length, 5, message);
+                m.torrentID = parts[1];
+                m.filename = parts[2];
+                m.pieceID = Integer.parseInt(parts[3]);
+                parseData(in, parts, m);
+                break;
+            case BLOCK_REQUEST:
+            case BLOCK_DATA:
+            case DATA_ACK:
+                throw new Message.UnrecognizedFormatException("Message " + m.type + " has no old format.");
+        }
+    }
+
+    private static void encodeLegacy(Message m, ByteBuffer out) {
+        String s = SEPARATOR;
+        String header = "";
+        boolean hasPayload = false;
+        switch (m.type) {
+            case HELLO:
+            case TIMED_OUT:
+                header = m.type.toString();
+                break;
+            case LIST_REQUEST:
+                header = m.type + s + m.pieceID;
+                break;
+            case LIST_RESPONSE:
+                header = m.type + s + m.pieceID + s + m.totalPieces + s;
+                hasPayload = true;
+                break;
+            case TORRENT_REQUEST:
+                header = m.type + s + m.torrentID + s + m.pieceID;
+                break;
+            case TORRENT_FILE:
+                header = m.type + s + m.torrentID + s + m.pieceID + s;
+                hasPayload = true;
+                break;
+            case WHO_HAS:
+            case I_HAVE:
+            case PIECE_REQUEST:
+                header = m.type + s + m.torrentID + s + m.filename + s + m.pieceID;
+                break;
+            case PIECE_DATA:
+                header = m.type + s + m.torrentID + s + m.filename + s + m.pieceID + s;
+                hasPayload = true;
+                break;
+            case BLOCK_REQUEST:
+            case BLOCK_DATA:
+            case DATA_ACK:
+                print("Message " + m.type + " has no old format.");
+                break;
+        }
+
+        out.put(header.getBytes());
+        if (hasPayload) out.put(m.payload.duplicate());
+    }
+}
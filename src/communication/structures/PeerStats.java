@@ -0,0 +1,139 @@
+package communication.structures;
+
+import util.TimerWheel;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Measures how fast each peer delivers file pieces.
+ * Throughput is averaged over windows of {@link #WINDOW} ms,
+ * and windows in which nothing arrived pull the average down,
+ * so a peer that stops answering is soon no longer preferred.
+ * <p>
+ * The round-trip time of requests to each peer is smoothed as in TCP (RFC 6298),
+ * to give the retransmission timeout (RTO) that retries of requests to the peer wait for.
+ * Every retry of the same request waits twice as long as the one before, up to {@link #MAX_RTO}.
+ * Only requests that were sent once are measured, as the answer to a retry could be the answer to any of its sends.
+ *
+ * @version 1.1
+ */
+public class PeerStats {
+
+    private static final ConcurrentHashMap<InetAddress, PeerStats> STATS = new ConcurrentHashMap<>();
+    private static final long WINDOW = 1000;  // ms
+    private static final double WEIGHT = 0.25;  // of the newest window in the average
+
+    /** Throughput of a peer that has never delivered anything, so that it gets tried. */
+    public static final double UNMEASURED = Double.MAX_VALUE;
+
+    /** The RTO of a peer whose round-trip time was never measured (ms). */
+    public static final long INITIAL_RTO = 300;
+    /** The shortest RTO, a few ticks of the timers that check it (ms). */
+    public static final long MIN_RTO = 5 * TimerWheel.TICK;
+    public static final long MAX_RTO = 5000;
+    /** The number of timeouts in a row, each twice as long as the one before, after which a silent peer is given up on. */
+    public static final int MAX_BACKOFFS = 3;
+    private static final double ALPHA = 1 / 8.0, BETA = 1 / 4.0;
+
+    public static PeerStats of(InetAddress peer) {
+        return STATS.computeIfAbsent(peer, p -> new PeerStats());
+    }
+
+    /**
+     * @param peer the peer to look up
+     * @return the average throughput of the peer (bytes/s) or {@link #UNMEASURED}
+     */
+    public static double throughputOf(InetAddress peer) {
+        PeerStats stats = STATS.get(peer);
+        return stats == null ? UNMEASURED : stats.getThroughput();
+    }
+
+    /**
+     * @param peer the peer to look up
+     * @return the RTO of the peer (ms)
+     */
+    public static long rtoOf(InetAddress peer) {
+        PeerStats stats = STATS.get(peer);
+        return stats == null ? INITIAL_RTO : stats.getRto();
+    }
+
+    /**
+     * @param rto      the RTO of the peer
+     * @param backoffs the number of times the request was retried
+     * @return how long to wait for an answer before retrying again (ms)
+     */
+    public static long backoff(long rto, int backoffs) {
+        return Math.min(MAX_RTO, rto << Math.min(backoffs, 16));
+    }
+
+    /**
+     * @param rto the RTO of the peer
+     * @return how long a peer may stay silent, through all its timeouts, before it is given up on (ms)
+     */
+    public static long giveUpAfter(long rto) {
+        long total = 0;
+        for (int i = 0; i < MAX_BACKOFFS; i++)
+            total += backoff(rto, i);
+        return total;
+    }
+
+    public static void forget(InetAddress peer) {
+        STATS.remove(peer);
+    }
+
+    private long windowStart = System.currentTimeMillis();
+    private long windowBytes = 0;
+    private double throughput = UNMEASURED;
+    private double srtt = -1;
+    private double rttvar;
+    private long rto = INITIAL_RTO;
+
+    private void roll(long now) {
+        long elapsed = now - windowStart;
+        if (elapsed < WINDOW) return;
+        double observed = windowBytes * 1000.0 / elapsed;
+        throughput = throughput == UNMEASURED ? observed : (1 - WEIGHT) * throughput + WEIGHT * observed;
+        windowStart = now;
+        windowBytes = 0;
+    }
+
+    /** Records that the peer delivered the given number of bytes just now. */
+    public synchronized void received(int bytes) {
+        roll(System.currentTimeMillis());
+        windowBytes += bytes;
+    }
+
+    /**
+     * Records the round-trip time of a request that was sent once.
+     *
+     * @param rtt the time from sending the request to the first answer (ms)
+     */
+    public synchronized void sampleRtt(double rtt) {
+        if (srtt < 0) {
+            srtt = rtt;
+            rttvar = rtt / 2;
+        }
+        else {
+            rttvar = (1 - BETA) * rttvar + BETA * Math.abs(srtt - rtt);
+            srtt = (1 - ALPHA) * srtt + ALPHA * rtt;
+        }
+        double timeout = srtt + Math.max(TimerWheel.TICK, 4 * rttvar);
+        rto = Math.max(MIN_RTO, Math.min(MAX_RTO, (long) Math.ceil(timeout)));
+    }
+
+    public synchronized long getRto() {
+        return rto;
+    }
+
+    public synchronized double getThroughput() {
+        roll(System.currentTimeMillis());
+        return throughput;
+    }
+
+    @Override
+    public synchronized String toString() {
+        String rtt = srtt < 0 ? "" : String.format(", srtt %.2f ms, rttvar %.2f ms, rto %d ms", srtt, rttvar, rto);
+        return (throughput == UNMEASURED ? "unmeasured" : String.format("%.0f B/s", throughput)) + rtt;
+    }
+}
@@ -0,0 +1,59 @@
+package communication.structures;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Limits the number of pieces requested from each peer and not yet received.
+ * A request takes a slot of the window, and the slot is given back when the piece arrives or the request times out,
+ * so that requests go out at the pace pieces come back instead of in bursts the socket buffers cannot hold.
+ * The free slots of the window are advertised to the peer as credits with every request,
+ * telling it how many pieces it may send before it hears from the requester again.
+ *
+ * @version 1.1
+ */
+public class RequestWindow {
+
+    private static final ConcurrentHashMap<InetAddress, RequestWindow> WINDOWS = new ConcurrentHashMap<>();
+
+    /** The number of pieces that may be requested from a peer at once. */
+    public static final int SIZE = Integer.getInteger("fds.window", 32);
+
+    public static RequestWindow of(InetAddress peer) {
+        return WINDOWS.computeIfAbsent(peer, p -> new RequestWindow());
+    }
+
+    public static void forget(InetAddress peer) {
+        WINDOWS.remove(peer);
+    }
+
+    private final int size = SIZE;
+    private int inFlight = 0;
+
+    /**
+     * Takes a slot for a request.
+     *
+     * @return the free slots before this one was taken, to advertise as credits with the request,
+     * or 0 if the window is full and the request must wait
+     */
+    public synchronized int open() {
+        int free = size - inFlight;
+        if (free <= 0) return 0;
+        inFlight++;
+        return free;
+    }
+
+    /** Gives back the slot of a request that was answered or timed out. */
+    public synchronized void close() {
+        if (inFlight > 0) inFlight--;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return inFlight + "/" + size;
+    }
+}
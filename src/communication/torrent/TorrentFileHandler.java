@@ -1,16 +1,18 @@
 package communication.torrent;
 
 import communication.structures.Message;
+import communication.structures.PeerStats;
 import fileman.FileHandles;
+import util.PeriodicTask;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 
-import static communication.discovery.ListResponseHandler.MAX_PERIODS;
-import static communication.discovery.ListResponseHandler.PERIOD;
+import static communication.discovery.ListResponseHandler.RETRY_PERIOD;
 import static communication.interaction.SocketInitializer.*;
 import static communication.structures.Message.Types.TORRENT_REQUEST;
 import static fileman.hash.FileHashing.TORRENT_EXTENSION;
@@ -19,7 +21,7 @@ import static util.CommonlyUsed.PIECE_SIZE;
 import static util.CommonlyUsed.print;
 import static util.Logger.log;
 
-public class TorrentFileHandler extends Thread {
+public class TorrentFileHandler extends PeriodicTask {
 
     private InetAddress sender;
     private int port;
@@ -29,6 +31,8 @@ public class TorrentFileHandler extends Thread {
     private boolean[] piecesReceived;
     private boolean recentlyUpdated = false;
     private boolean done = false;
+    private long waitStart = System.currentTimeMillis();
+    private int backoffs = 0;
 
     public TorrentFileHandler(Message m, String localPath) {
         sender = m.getSender();
@@ -39,6 +43,12 @@ public class TorrentFileHandler extends Thread {
         for (int i = 0; i < n; i++)
             piecesReceived[i] = false;
 
+        // The first piece answers the requests of the TorrentRequester, each sent once.
+        LinkedHashMap<String, TorrentRequester> requesters = getTorrentRequesters().get(sender);
+        TorrentRequester requester = requesters == null ? null : requesters.get(torrentID);
+        if (requester != null && requester.getSent() != 0)
+            PeerStats.of(sender).sampleRtt((System.nanoTime() - requester.getSent()) / 1e6);
+
         openFiles(localPath);
     }
 
@@ -68,9 +78,10 @@ public class TorrentFileHandler extends Thread {
 
         int pieceID = m.getPieceID();
         try {
-            if (writer.getFilePointer() != pieceID * PIECE_SIZE)
-                writer.seek(pieceID * PIECE_SIZE);
-            writer.write(m.getPieceData());
+            ByteBuffer data = m.getPayload();
+            long position = (long) pieceID * PIECE_SIZE;
+            while (data.hasRemaining())
+                position += writer.getChannel().write(data, position);
         }
         catch (IOException e) {
             log(e);
@@ -127,45 +138,51 @@ public class TorrentFileHandler extends Thread {
         newSenderFileHandlers.put(torrentID, handler);
     }
 
+    /**
+     * Starts checking for missing pieces.
+     * One is requested again once the sender stays silent for its RTO, see {@link PeerStats},
+     * and the torrent is given up on after {@link PeerStats#MAX_BACKOFFS} unanswered timeouts.
+     */
+    public void start() {
+        start(RETRY_PERIOD);
+    }
+
     @Override
     public void run() {
-        int periodsPassed = 0;
-        while (true) {
-            try {
-                Thread.sleep(PERIOD);
-            }
-            catch (InterruptedException e) {
-                log(e);
-            }
-            if (recentlyUpdated) {
-                recentlyUpdated = false;
-                periodsPassed = 0;
-            }
-            else periodsPassed++;
+        long now = System.currentTimeMillis();
+        if (recentlyUpdated) {
+            recentlyUpdated = false;
+            waitStart = now;
+            backoffs = 0;
+        }
 
-            if (periodsPassed == MAX_PERIODS) {
-                int id = -1;
-                for (int i = 0; i < piecesReceived.length; i++)
-                    if (!piecesReceived[i])
-                        id = i;
-                if (id == -1) break;  // Break if I have all the pieces.
+        if (now - waitStart < PeerStats.backoff(PeerStats.rtoOf(sender), backoffs)) return;
+        waitStart = now;
+        if (++backoffs < PeerStats.MAX_BACKOFFS) {
+            int id = -1;
+            for (int i = 0; i < piecesReceived.length; i++)
+                if (!piecesReceived[i])
+                    id = i;
+            if (id == -1) {  // Stop if I have all the pieces.
+                stop();
+                return;
+            }
 
-                Message m = new Message(TORRENT_REQUEST, torrentID, id);
-                if (getSeeders().get(sender).isDead())
-                    findNewOwner();
-                unicastMessage(m, sender, port);
+            Message m = new Message(TORRENT_REQUEST, torrentID, id);
+            if (getSeeders().get(sender).isDead())
+                findNewOwner();
+            unicastMessage(m, sender, port);
 
+        }
+        else {
+            try {
+                writer.close();
             }
-            else if (periodsPassed == MAX_PERIODS * 2) {
-                try {
-                    writer.close();
-                }
-                catch (IOException e) {
-                    log(e);
-                }
-                torrentFile.delete();
-                break;  // Give up on pieces.
+            catch (IOException e) {
+                log(e);
             }
+            torrentFile.delete();
+            stop();  // Give up on pieces.
         }
     }
 }
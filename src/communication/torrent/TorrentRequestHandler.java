@@ -8,7 +8,7 @@ import java.net.InetAddress;
 import static communication.interaction.SocketInitializer.unicastMessage;
 import static communication.structures.Message.Types.TORRENT_FILE;
 
-public class TorrentRequestHandler extends Thread {
+public class TorrentRequestHandler implements Runnable {
 
     private InetAddress requester;
     private int port;
@@ -11,10 +11,11 @@ import static communication.interaction.SocketInitializer.unicastMessage;
 import static communication.structures.Message.Types.TORRENT_REQUEST;
 import static util.CommonlyUsed.print;
 
-public class TorrentRequester extends Thread {
+public class TorrentRequester implements Runnable {
 
     private String torrentID;
     private String localDestination;
+    private volatile long sent;
 
     public TorrentRequester(String torrentID, String localDestination) {
         print("Requesting torrent=" + torrentID);
@@ -26,6 +27,11 @@ public class TorrentRequester extends Thread {
         return localDestination;
     }
 
+    /** @return when the requests were sent (ns, from {@link System#nanoTime()}) */
+    public long getSent() {
+        return sent;
+    }
+
     @Override
     public void run() {
         InetAddress owner = FileHandles.getOwnerOf(torrentID);
@@ -42,6 +48,7 @@ public class TorrentRequester extends Thread {
 
 
         int numberOfPieces = FileHandles.getNumberOfNetworkTorrentPieces(torrentID);
+        sent = System.nanoTime();
         for (int i = 0; i < numberOfPieces; i++) {
             Message m = new Message(TORRENT_REQUEST, torrentID, i);
             unicastMessage(m, owner);
@@ -1,6 +1,11 @@
 package fileman;
 
-import fileman.hash.HashChecker;
+import communication.structures.PeerStats;
+import communication.structures.RequestWindow;
+import fileman.hash.MerkleTree;
+import fileman.torrent.PeerList;
+import fileman.torrent.PeerTable;
+import fileman.torrent.Scrubber;
 import fileman.torrent.Torrent;
 import util.CommonlyUsed;
 
@@ -8,10 +13,10 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.net.InetAddress;
-import java.util.LinkedHashMap;
+import java.nio.ByteBuffer;
 import java.util.LinkedHashSet;
-import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static fileman.hash.FileHashing.TORRENT_EXTENSION;
 import static fileman.torrent.GenerateTorrent.DIR;
@@ -20,20 +25,23 @@ import static util.Logger.log;
 
 /**
  * Provides file handles for the classes of the communication package.
+ * All the maps are concurrent, so any number of handler threads can use them at once,
+ * and lookups never block.
+ * Owners are kept in {@link PeerList}s, so picking one does not depend on how many there are.
  *
- * @version 2.0
+ * @version 3.7
  */
 public class FileHandles {
 
     /** Maps torrent IDs to their respective instance of class {@link Torrent}. */
-    private static final LinkedHashMap<String, Torrent> TORRENTS = new LinkedHashMap<>();
+    private static final ConcurrentHashMap<String, Torrent> TORRENTS = new ConcurrentHashMap<>();
 
     /** Keeps track of the torrent files and their contents available from the network. */
-    private static final LinkedHashMap<String, String[]> NETWORK_TORRENTS = new LinkedHashMap<>();
-    private static final LinkedHashMap<String, Integer> NETWORK_TORRENTS_SIZES = new LinkedHashMap<>();
+    private static final ConcurrentHashMap<String, String[]> NETWORK_TORRENTS = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Integer> NETWORK_TORRENTS_SIZES = new ConcurrentHashMap<>();
 
     /** Maps torrent ID to peers who have that torrent. */
-    private static final LinkedHashMap<String, LinkedHashSet<InetAddress>> TORRENT_OWNERS = new LinkedHashMap<>();
+    private static final ConcurrentHashMap<String, PeerList> TORRENT_OWNERS = new ConcurrentHashMap<>();
 
     private static void addDefault() {
         File torrentsFolder = new File(DIR);
@@ -97,6 +105,7 @@ public class FileHandles {
         catch (InterruptedException e) {
             log(e);
         }
+        if (Scrubber.RATE > 0) new Scrubber(TORRENTS.values()).start(Scrubber.PERIOD);
 
     }
 
@@ -105,7 +114,8 @@ public class FileHandles {
         try {
             t = new Torrent(torrentFile);
             t.setLocalFolder(localDestination);
-            TORRENTS.put(t.getId(), t);
+            Torrent replaced = TORRENTS.put(t.getId(), t);
+            if (replaced != null) replaced.stop();  // A regenerated torrent.
             new Thread(t).start();
         }
         catch (IOException e) {
@@ -138,9 +148,7 @@ public class FileHandles {
     }
 
     private static void trackOwners(String torrentID, InetAddress owner) {
-        if (!TORRENT_OWNERS.containsKey(torrentID))
-            TORRENT_OWNERS.put(torrentID, new LinkedHashSet<>());
-        TORRENT_OWNERS.get(torrentID).add(owner);
+        TORRENT_OWNERS.computeIfAbsent(torrentID, id -> new PeerList()).add(PeerTable.intern(owner));
     }
 
     public static void addRemoteTorrents(String torrents, InetAddress owner, int port) {
@@ -160,29 +168,27 @@ public class FileHandles {
     }
 
     public static void removeOwner(InetAddress owner) {
-        LinkedHashSet<String> torrentIDsToRemove = new LinkedHashSet<>();
-        TORRENT_OWNERS.forEach((torrentID, set) -> {
-            set.remove(owner);
-            if (set.isEmpty())
-                torrentIDsToRemove.add(torrentID);
-        });
-        torrentIDsToRemove.forEach(torrentID -> {
-            TORRENT_OWNERS.remove(torrentID);
-            NETWORK_TORRENTS.remove(torrentID);
-        });
+        int peer = PeerTable.indexOf(owner);
+        for (String torrentID : TORRENT_OWNERS.keySet()) {
+            // Removes the entry atomically, so an owner added at the same time is not lost.
+            PeerList remaining = TORRENT_OWNERS.computeIfPresent(torrentID, (id, owners) -> {
+                owners.remove(peer);
+                return owners.isEmpty() ? null : owners;
+            });
+            if (remaining == null)
+                NETWORK_TORRENTS.remove(torrentID);
+        }
+        for (Torrent t : TORRENTS.values())
+            t.removeOwner(owner);
+        PeerStats.forget(owner);
+        RequestWindow.forget(owner);
     }
 
     public static InetAddress getOwnerOf(String torrentID) {
-        Set<InetAddress> owners = TORRENT_OWNERS.get(torrentID);
+        PeerList owners = TORRENT_OWNERS.get(torrentID);
         if (owners == null) return null;
-        int size = owners.size();
-        int item = new Random().nextInt(size);
-        int i = 0;
-        for (InetAddress owner : owners)
-            if (i == item)
-                return owner;
-            else i++;
-        return null;
+        int owner = owners.random();
+        return owner == PeerList.NONE ? null : PeerTable.get(owner);
     }
 
     public static int getNumberOfNetworkTorrentPieces(String torrentID) {
@@ -221,10 +227,10 @@ public class FileHandles {
         return t.getFilePiece(filename, pieceID);
     }
 
-    public static void setFilePiece(String torrentID, String filename, Integer pieceID, byte[] pieceData) {
+    public static void setFilePiece(String torrentID, int file, int pieceID, ByteBuffer pieceData) {
         Torrent t = TORRENTS.get(torrentID);
         if (t == null) return;
-        t.setFilePiece(filename, pieceID, pieceData);
+        t.setFilePiece(file, pieceID, pieceData);
     }
 
     public static void writeAndCloseFile(String torrentID, String filename) {
@@ -260,49 +266,56 @@ public class FileHandles {
         return t.openFileW(filename);
     }
 
+    public static long getFileSize(String torrentID, String filename) {
+        Torrent t = TORRENTS.get(torrentID);
+        return t == null ? -1 : t.getFileSize(filename);
+    }
+
+    /** {@link Torrent#isMerkle()} */
+    public static boolean isMerkle(String torrentID) {
+        Torrent t = TORRENTS.get(torrentID);
+        return t != null && t.isMerkle();
+    }
+
     public static int getNumberOfPieces(String torrentID, String filename) {
         Torrent t = TORRENTS.get(torrentID);
-        try {
-            return (int) CommonlyUsed.getNumberOfPieces(t.getFileSize(filename));
-        }
-        catch (IOException e) {
-            log(e);
-            return -1;
-        }
+        return (int) CommonlyUsed.getNumberOfPieces(t.getFileSize(filename));
+    }
+
+    /** {@link Torrent#indexOf(String)} */
+    public static int getFileIndex(String torrentID, String filename) {
+        Torrent t = TORRENTS.get(torrentID);
+        return t == null ? -1 : t.indexOf(filename);
     }
 
     /**
-     * Returns a random owner of the requested piece.
+     * Returns an owner of the requested piece, preferring faster peers.
+     * Two owners are picked at random and the one with the higher measured throughput wins,
+     * which spreads requests over all owners while sending more of them to the fast ones.
      *
      * @param torrentID the id of the torrent that contains the file
-     * @param filename  the name of the file
+     * @param file      the index of the file in the torrent
      * @param pieceID   the id of the piece to get an owner of
-     * @return a random owner of the requested piece or null if no such is found
+     * @return an owner of the requested piece or null if no such is found
      */
-    public static InetAddress getOwnerOf(String torrentID, String filename, int pieceID) {
+    public static InetAddress getOwnerOf(String torrentID, int file, int pieceID) {
         Torrent t = TORRENTS.get(torrentID);
-        Set<InetAddress> owners = t.getSetsOfOwners(filename).get(pieceID);
-        int n = owners.size();
-        int item;
-        try {
-            item = new Random().nextInt(n);
-        }
-        catch (Exception e) {
-            log(e);
-            return null;
-        }
-        int i = 0;
-        for (InetAddress owner : owners) {
-            if (i == item)
-                return owner;
-            else i++;
-        }
-        return null;
+        if (t == null) return null;
+        PeerList owners = t.getOwners(file, pieceID);
+        if (owners == null) return null;
+        int first = owners.random();
+        if (first == PeerList.NONE) return null;
+        int second = owners.random();
+        if (second == PeerList.NONE || second == first) return PeerTable.get(first);
+
+        InetAddress a = PeerTable.get(first), b = PeerTable.get(second);
+        return PeerStats.throughputOf(a) >= PeerStats.throughputOf(b) ? a : b;
     }
 
-    /** {@link Torrent#getPiecesByRarity(String)} */
-    public static int[] getPiecesByRarity(String torrentID, String filename) {
-        return TORRENTS.get(torrentID).getPiecesByRarity(filename);
+    /** {@link Torrent#getRarestMissing(int, int)}, empty if the torrent is not known */
+    public static int[] getRarestMissing(String torrentID, int file, int max) {
+        Torrent t = TORRENTS.get(torrentID);
+        return t == null ? new int[0] : t.getRarestMissing(file, max);
     }
 
     public static void printMap(String mapName) {
@@ -319,18 +332,27 @@ public class FileHandles {
             case "torrent_owners":
                 TORRENT_OWNERS.forEach(CommonlyUsed::print);
                 break;
+            case "peer_stats":
+                LinkedHashSet<InetAddress> measured = new LinkedHashSet<>();
+                TORRENT_OWNERS.forEach((torrentID, owners) -> {
+                    for (int peer : owners.toArray()) measured.add(PeerTable.get(peer));
+                });
+                measured.forEach(peer -> print(peer, PeerStats.of(peer)));
+                break;
             case "file_owners":
                 TORRENTS.forEach((id, t) -> {
                     print(id);
                     t.forEachFile((filename) -> {
                         print(filename);
-                        t.getSetsOfOwners(filename).forEach(set -> print(set.size()));
+                        for (int count : t.getOwnerCounts(filename)) print(count);
                     });
                 });
                 break;
             case "peers":
                 LinkedHashSet<InetAddress> peers = new LinkedHashSet<>();
-                TORRENT_OWNERS.forEach((torrentID, set) -> peers.addAll(set));
+                TORRENT_OWNERS.forEach((torrentID, owners) -> {
+                    for (int peer : owners.toArray()) peers.add(PeerTable.get(peer));
+                });
                 peers.forEach(CommonlyUsed::print);
                 break;
             default:
@@ -345,13 +367,7 @@ public class FileHandles {
     }
 
     private static String formatFileMeta(Torrent t, String filename) {
-        long size = 0;
-        try {
-            size = t.getFileSize(filename);
-        }
-        catch (IOException e) {
-            log(e);
-        }
+        long size = t.getFileSize(filename);
         int pieces = (int) CommonlyUsed.getNumberOfPieces(size);
         return filename + ": " + size + " bytes in  " + pieces + " pieces" + NEW_LINE;
     }
@@ -376,16 +392,29 @@ public class FileHandles {
         return t.getFilenames();
     }
 
-    public static boolean check(String torrentID, String filename, int pieceID, byte[] pieceData) {
+    public static boolean check(String torrentID, int file, int pieceID, ByteBuffer pieceData, byte[][] proof) {
         Torrent t = TORRENTS.get(torrentID);
-        if (t == null) return false;
+        return t != null && t.check(file, pieceID, pieceData, proof);
+    }
 
-        try {
-            return HashChecker.isCorrect(t.getReader(), filename, pieceID, pieceData);
-        }
-        catch (IOException e) {
-            log(e);
-            return true;
-        }
+    /** {@link Torrent#corruptBlocks(int, int, ByteBuffer, byte[], byte[][])}, -1 if the torrent is unknown */
+    public static long corruptBlocks(String torrentID, int file, int pieceID, ByteBuffer pieceData, byte[] leaves,
+                                     byte[][] proof) {
+        Torrent t = TORRENTS.get(torrentID);
+        return t == null ? -1 : t.corruptBlocks(file, pieceID, pieceData, leaves, proof);
+    }
+
+    /** {@link Torrent#hashBlocks(byte[])}, empty if the torrent is unknown */
+    public static byte[][] hashBlocks(String torrentID, byte[] pieceData) {
+        Torrent t = TORRENTS.get(torrentID);
+        return t == null ? MerkleTree.NO_PROOF : t.hashBlocks(pieceData);
+    }
+
+    /** @return the proof to send with the piece, or null if it cannot be proven */
+    public static byte[][] getProof(String torrentID, String filename, int pieceID) {
+        Torrent t = TORRENTS.get(torrentID);
+        if (t == null) return null;
+        int file = t.indexOf(filename);
+        return file == -1 ? null : t.getProof(file, pieceID);
     }
 }
\ No newline at end of file
@@ -0,0 +1,122 @@
+package fileman.hash;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+
+/**
+ * The digests a torrent can verify its pieces with, recorded in the header of binary torrents.
+ * Every thread has a digest of each algorithm of its own, so no thread ever waits for another to hash.
+ * Digests are returned as raw bytes.
+ *
+ * @version 1.0
+ */
+public enum DigestAlgorithm {
+
+    /** The algorithm of text torrents and of torrents made before the choice was recorded. */
+    SHA1(1, "SHA-1", 20),
+    SHA256(2, "SHA-256", 32),
+    /**
+     * The CRC-32C and the CRC-32 of the data, which the JVM computes with the processor's instructions.
+     * It detects corruption but not tampering, so it is only meant for trusted private networks.
+     */
+    FAST(3, null, 8);
+
+    /** The length of the longest digest in bytes. */
+    public static final int MAX_LENGTH = 32;
+
+    private static final ThreadLocal<CRC32C> CRC32C_CHECKSUMS = ThreadLocal.withInitial(CRC32C::new);
+    private static final ThreadLocal<CRC32> CRC32_CHECKSUMS = ThreadLocal.withInitial(CRC32::new);
+
+    private final int id;
+    private final int length;
+    private final ThreadLocal<MessageDigest> digests;
+
+    DigestAlgorithm(int id, String name, int length) {
+        this.id = id;
+        this.length = length;
+        this.digests = name == null ? null : ThreadLocal.withInitial(() -> {
+            try {
+                return MessageDigest.getInstance(name);
+            }
+            catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /** @return the algorithm recorded with the given id, or null if there is none */
+    public static DigestAlgorithm fromId(int id) {
+        for (DigestAlgorithm algorithm : values())
+            if (algorithm.id == id) return algorithm;
+        return null;
+    }
+
+    /** @return the algorithm with the given name, in any case, or null if there is none */
+    public static DigestAlgorithm fromName(String name) {
+        for (DigestAlgorithm algorithm : values())
+            if (algorithm.name().equalsIgnoreCase(name)) return algorithm;
+        return null;
+    }
+
+    /** @return the id recorded in torrents */
+    public int getId() {
+        return id;
+    }
+
+    /** @return the length of a digest in bytes */
+    public int getLength() {
+        return length;
+    }
+
+    private static byte[] checksums(CRC32C crc32c, CRC32 crc32) {
+        long c = crc32c.getValue(), d = crc32.getValue();
+        return new byte[]{
+                (byte) (c >>> 24), (byte) (c >>> 16), (byte) (c >>> 8), (byte) c,
+                (byte) (d >>> 24), (byte) (d >>> 16), (byte) (d >>> 8), (byte) d};
+    }
+
+    /**
+     * @param bytes  the bytes to hash
+     * @param offset the first byte to hash
+     * @param amount the amount of bytes to hash
+     * @return the digest of the bytes
+     */
+    public byte[] digest(byte[] bytes, int offset, int amount) {
+        if (digests != null) {
+            MessageDigest digest = digests.get();
+            digest.update(bytes, offset, Math.max(amount, 0));
+            return digest.digest();
+        }
+        CRC32C crc32c = CRC32C_CHECKSUMS.get();
+        CRC32 crc32 = CRC32_CHECKSUMS.get();
+        crc32c.reset();
+        crc32.reset();
+        crc32c.update(bytes, offset, Math.max(amount, 0));
+        crc32.update(bytes, offset, Math.max(amount, 0));
+        return checksums(crc32c, crc32);
+    }
+
+    /**
+     * Works on slices of received messages without copying them.
+     *
+     * @param bytes the bytes to hash, consumed by this call
+     * @return the digest of the remaining bytes of the buffer
+     */
+    public byte[] digest(ByteBuffer bytes) {
+        if (digests != null) {
+            MessageDigest digest = digests.get();
+            digest.update(bytes);
+            return digest.digest();
+        }
+        CRC32C crc32c = CRC32C_CHECKSUMS.get();
+        CRC32 crc32 = CRC32_CHECKSUMS.get();
+        crc32c.reset();
+        crc32.reset();
+        crc32c.update(bytes.duplicate());
+        crc32.update(bytes);
+        return checksums(crc32c, crc32);
+    }
+}
@@ -1,102 +1,143 @@
 package fileman.hash;
 
-import java.io.*;
+import fileman.torrent.TorrentMeta;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
-import static fileman.hash.FileHashing.hashPart;
-import static fileman.hash.HashChecker.skipOtherFileHashes;
-import static fileman.torrent.Torrent.FILEPATH_SEPARATOR;
-import static util.CommonlyUsed.*;
+import static util.CommonlyUsed.PIECE_SIZE;
+import static util.CommonlyUsed.print;
 import static util.Logger.log;
 
 /**
  * Checks all the hashes of the pieces of the given file.
+ * The file is split into runs of consecutive pieces, and every run is checked by a task on {@link HashService}'s pool,
+ * so a large file is checked by all cores at once. Pieces are hashed with the torrent's {@link DigestAlgorithm}.
+ * <p>
+ * In Merkle mode the tasks hash the blocks of their pieces instead, and the tree built from all of them
+ * is compared with the root in the torrent. Either every piece of the file is owned or none is,
+ * as the torrent keeps no hash for a single piece. The tree is kept to prove the pieces to other peers.
  *
- * @version 1.0
+ * @version 2.4
  */
-public class FileHashChecker extends Thread {
-
-    private final String inputFileName;
-    private final FileInputStream input;
-    private final BufferedReader torrent;
-    private final LinkedHashSet<Integer> piecesOwned = new LinkedHashSet<>();
-
-    public FileHashChecker(File torrent, String inputFileName) throws IOException {
-        this.inputFileName = inputFileName;
-        this.torrent = new BufferedReader(new FileReader(torrent));
-        this.torrent.readLine();  // Torrent ID
-        this.torrent.readLine();  // Total FileSize
-        File local = new File(this.torrent.readLine());
-        if (!local.exists()) throw new FileNotFoundException("Not local!");
-        this.input = new FileInputStream(local.getAbsolutePath() + FILEPATH_SEPARATOR + inputFileName);
+public class FileHashChecker {
+
+    /** The number of consecutive pieces checked by one task. */
+    private static final int PIECES_PER_TASK = 64;
+
+    private final TorrentMeta meta;
+    private final int file;
+    private final File input;
+    private final ArrayList<Future<boolean[]>> tasks = new ArrayList<>();
+    /** Puts the tree of the file together in Merkle mode, null otherwise. */
+    private final MerkleTree.Builder builder;
+    private MerkleTree tree;
+
+    /**
+     * @param meta  the torrent that contains the file
+     * @param file  the index of the file in the torrent
+     * @param input the local copy of the file
+     * @throws FileNotFoundException if there is no local copy
+     * @throws IllegalArgumentException if the file is too large for a Merkle tree
+     */
+    public FileHashChecker(TorrentMeta meta, int file, File input) throws FileNotFoundException {
+        this.meta = meta;
+        this.file = file;
+        this.input = input;
+        if (!input.exists()) throw new FileNotFoundException(input.getAbsolutePath());
+        this.builder = meta.isMerkle() ? new MerkleTree.Builder(meta.getAlgorithm(), meta.getFileSize(file)) : null;
     }
 
     public String getInputFileName() {
-        return inputFileName;
+        return meta.getFilename(file);
     }
 
-    public LinkedHashSet<Integer> getPiecesOwned() {
-        return piecesOwned;
+    private static void readPiece(FileChannel channel, ByteBuffer piece, int i) throws IOException {
+        piece.clear();
+        long position = (long) i * PIECE_SIZE;
+        while (piece.hasRemaining())
+            if (channel.read(piece, position + piece.position()) <= 0) break;
+        piece.flip();
     }
 
-    private long findFileHash() {
-        try {
-            return getNumberOfPieces(skipOtherFileHashes(torrent, inputFileName));
-        }
-        catch (IOException e) {
-            log(e);
-            return -1;
-        }
+    private boolean checkPiece(ByteBuffer piece, int i) {
+        byte[] hashCalculated = meta.getAlgorithm().digest(piece);
+        if (meta.matches(file, i, hashCalculated)) return true;
+
+        print(getInputFileName(), i, "calculated:" + HashService.toHex(hashCalculated),
+                "expected:  " + HashService.toHex(meta.getHash(file, i)), "");
+        return false;
     }
 
-    private boolean checkNextPiece(int i) {
-        byte[] piece = new byte[PIECE_SIZE];
-        int actuallyRead;
-        try {
-            actuallyRead = input.read(piece, 0, piece.length);
-        }
-        catch (IOException e) {
-            log(e);
-            return false;
+    private boolean[] checkPieces(int from, int to) throws IOException {
+        boolean[] owned = new boolean[to - from];
+        ByteBuffer piece = ByteBuffer.allocate(PIECE_SIZE);
+        try (FileChannel channel = new FileInputStream(input).getChannel()) {
+            for (int i = from; i < to; i++) {
+                readPiece(channel, piece, i);
+                if (builder != null) builder.add(MerkleTree.getFirstLeaf(i), MerkleTree.hashBlocks(meta.getAlgorithm(), piece));
+                else owned[i - from] = checkPiece(piece, i);
+            }
         }
+        return owned;
+    }
 
-        String hashExpected;
-        try {
-            hashExpected = torrent.readLine();
-        }
-        catch (IOException e) {
-            log(e);
-            return false;
+    /** Submits the checks of all the pieces of the file. */
+    public void start() {
+        int pieces = meta.getNumberOfPieces(file);
+        for (int from = 0; from < pieces; from += PIECES_PER_TASK) {
+            int start = from, end = Math.min(from + PIECES_PER_TASK, pieces);
+            tasks.add(HashService.submit(() -> checkPieces(start, end)));
         }
+    }
 
-        String hashCalculated;
-        try {
-            hashCalculated = hashPart(piece, actuallyRead);
-        }
-        catch (Exception e) {
-            log(e);
-            log(this.inputFileName);
-            hashCalculated = "---";
+    /**
+     * Waits for every piece to be checked.
+     *
+     * @return the pieces of the file whose hashes match, in order
+     */
+    public LinkedHashSet<Integer> getPiecesOwned() {
+        LinkedHashSet<Integer> piecesOwned = new LinkedHashSet<>();
+        for (int t = 0; t < tasks.size(); t++) {
+            boolean[] owned;
+            try {
+                owned = tasks.get(t).get();
+            }
+            catch (InterruptedException | ExecutionException e) {
+                log(e);
+                continue;
+            }
+            for (int i = 0; i < owned.length; i++)
+                if (owned[i]) piecesOwned.add(t * PIECES_PER_TASK + i);
         }
+        if (builder != null) checkRoot(piecesOwned);
+        return piecesOwned;
+    }
 
-
-        if (hashCalculated.equals(hashExpected)) return true;
-        else {
-            print(inputFileName, i, "calculated:" + hashCalculated, "expected:  " + hashExpected, "");
-            return false;
+    private void checkRoot(LinkedHashSet<Integer> piecesOwned) {
+        MerkleTree built = builder.build();
+        if (built == null) return;  // Some pieces could not be read.
+        byte[] root = built.getRoot();
+        if (!HashService.matches(meta.getRoot(file), root)) {
+            print(getInputFileName(), "calculated root:" + HashService.toHex(root),
+                    "expected root:  " + HashService.toHex(meta.getRoot(file)), "");
+            return;
         }
+        tree = built;
+        for (int i = 0; i < meta.getNumberOfPieces(file); i++)
+            piecesOwned.add(i);
     }
 
-    @Override
-    public void run() {
-        long pieces = findFileHash();
-        if (pieces == -1) return;
-
-        for (int i = 0; i < pieces; i++) {
-            if (!checkNextPiece(i)) {
-                continue;
-            }
-            piecesOwned.add(i);
-        }
+    /** @return the tree of the file once it matched the root in the torrent, or null */
+    public MerkleTree getTree() {
+        return tree;
     }
 }
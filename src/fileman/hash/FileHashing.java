@@ -1,114 +1,138 @@
 package fileman.hash;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static util.CommonlyUsed.NEW_LINE;
-import static util.CommonlyUsed.PIECE_SIZE;
-import static util.Logger.log;
+import static util.CommonlyUsed.*;
 
 /**
  * Generates the hashes for a single file.
+ * The file is read into two buffers in turn: while the pieces of one buffer are hashed on {@link HashService}'s pool,
+ * the next part of the file is read into the other one.
+ * The result is the raw digest of every piece, which the caller writes in the torrent's format.
+ * In Merkle mode the pieces' blocks are hashed instead, and the result is the root of the file's {@link MerkleTree}.
  *
- * @version 1.3
+ * @version 2.6
  */
-public class FileHashing {
+public class FileHashing implements Callable<byte[][]> {
 
     public static final String TORRENT_EXTENSION = ".torrent";
 
+    /** This is the length of the hash of text torrents as number of hexadecimal characters. */
+    private static final int HASH_LENGTH = DigestAlgorithm.SHA1.getLength() * 2;  // Two hexadecimal digits per byte.
+
     /** This is the length of the hash accounting for EOL delimiter. */
-    public static final int HASH_LINE_LENGTH;
+    public static final int HASH_LINE_LENGTH = HASH_LENGTH + NEW_LINE.length();
+
+    /** The number of pieces read into a buffer at once. */
+    private static final int PIECES_PER_BUFFER = 64;
 
-    /** This is the length of the hash as number of hexadecimal characters. */
-    private static final int HASH_LENGTH;
+    private final File input;
+    private final long size;
+    private final AtomicLong hashedBytes;
+    private final DigestAlgorithm algorithm;
+    /** Puts the tree of the file together in Merkle mode, null otherwise. */
+    private final MerkleTree.Builder tree;
 
-    private static MessageDigest sha1 = null;
+    /**
+     * @param input       the file to hash
+     * @param size        the size of the file recorded in the torrent
+     * @param hashedBytes a counter of hashed bytes, shared by all the files of the torrent
+     * @param algorithm   the algorithm to hash with
+     * @param merkle      true to compute the Merkle root of the file instead of the piece hashes
+     * @throws IllegalArgumentException if the file is too large for a Merkle tree
+     */
+    public FileHashing(File input, long size, AtomicLong hashedBytes, DigestAlgorithm algorithm, boolean merkle) {
+        this.input = input;
+        this.size = size;
+        this.hashedBytes = hashedBytes;
+        this.algorithm = algorithm;
+        this.tree = merkle ? new MerkleTree.Builder(algorithm, size) : null;
+    }
 
-    static {
+    private static void await(ArrayList<Future<?>> hashing) throws IOException {
         try {
-            sha1 = MessageDigest.getInstance("SHA1");
+            for (Future<?> f : hashing) f.get();
         }
-        catch (NoSuchAlgorithmException e) {
-            log(e);
+        catch (InterruptedException | ExecutionException e) {
+            throw new IOException("hashing failed", e);
         }
-        HASH_LENGTH = sha1.getDigestLength() * 2;  // Two hexadecimal digits per byte.
-        HASH_LINE_LENGTH = HASH_LENGTH + NEW_LINE.length();
+        hashing.clear();
     }
 
-    private final FileInputStream input;
-    private final String relativeFilePath;
-    private final OutputStream output;
-
-    public FileHashing(FileInputStream input, String relativeFilePath, OutputStream output) throws NoSuchAlgorithmException, FileNotFoundException {
-        this.input = input;
-        this.relativeFilePath = relativeFilePath;
-        this.output = output;
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) <= 0) break;
+        buffer.flip();
     }
 
-    /**
-     * Performs the SHA-1 hashing algorithm on the given bytes
-     * and returns the generated hash as a hexadecimal string.
-     * This method needs to be synchronized,
-     * otherwise the hashing algorithm digests data from multiple threads.
-     *
-     * @param bytes  the bytes to perform the hash on
-     * @param amount the amount of bytes to read (starting at 0)
-     * @return a hexadecimal representation of the hash
-     */
-    synchronized static String hashPart(byte[] bytes, int amount) {
-        sha1.update(bytes, 0, amount);
-        StringBuilder sb = new StringBuilder();
-        byte[] hash = sha1.digest();
-        for (byte b : hash) {
-            // Hexadecimal, ignore sign.
-            String hex = Integer.toHexString(b & 0xff);
-            if (hex.length() == 1) hex = "0" + hex;  // Add leading zero.
-            sb.append(hex);
+    private void submitPieces(ByteBuffer buffer, int firstPiece, byte[][] hashes, ArrayList<Future<?>> hashing) {
+        for (int offset = 0, piece = firstPiece; offset < buffer.limit(); offset += PIECE_SIZE, piece++) {
+            ByteBuffer slice = buffer.duplicate();
+            slice.position(offset).limit(Math.min(offset + PIECE_SIZE, buffer.limit()));
+            int id = piece;
+            hashing.add(HashService.submit(() -> {
+                int length = slice.remaining();
+                if (tree != null) tree.add(MerkleTree.getFirstLeaf(id), MerkleTree.hashBlocks(algorithm, slice));
+                else hashes[id] = algorithm.digest(slice);
+                hashedBytes.addAndGet(length);
+                return null;
+            }));
         }
-
-        return sb.toString();
     }
 
     /**
-     * Reads the bytes from the given {@link FileInputStream} and
-     * writes the hashes of the chunks consecutively.
+     * Reads the file and hashes its pieces.
+     *
+     * @return the hashes of the pieces, in order
+     * @throws IOException if the file could not be read, or is now shorter than the given size
      */
-    private void hashChunks() {
-        byte[] bytes = new byte[PIECE_SIZE];
-        int amountRead;
-        try {
-            do {
-                amountRead = input.read(bytes, 0, PIECE_SIZE);
-                String hash = hashPart(bytes, amountRead) + NEW_LINE;
-                output.write(hash.getBytes());
+    private byte[][] hashChunks(long size) throws IOException {
+        int pieces = (int) getNumberOfPieces(size);
+        byte[][] hashes = new byte[pieces][];
+        int capacity = (int) Math.min(size, (long) PIECES_PER_BUFFER * PIECE_SIZE);
+        ByteBuffer[] buffers = {ByteBuffer.allocate(capacity), ByteBuffer.allocate(capacity)};
+        List<ArrayList<Future<?>>> hashing = List.of(new ArrayList<>(), new ArrayList<>());
+
+        try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            int current = 0;
+            for (int first = 0; first < pieces; first += PIECES_PER_BUFFER) {
+                await(hashing.get(current));  // The buffer is free once its pieces are hashed.
+                ByteBuffer buffer = buffers[current];
+                int expected = (int) Math.min(capacity, size - (long) first * PIECE_SIZE);
+                buffer.clear().limit(expected);
+                readFully(channel, buffer, (long) first * PIECE_SIZE);
+                if (buffer.limit() < expected) throw new IOException(input + " shrank while it was hashed");
+                submitPieces(buffer, first, hashes, hashing.get(current));
+                current ^= 1;
             }
-            while (amountRead == PIECE_SIZE);
-        }
-        catch (IOException e) {
-            log(e);
+            await(hashing.get(0));
+            await(hashing.get(1));
         }
+        return hashes;
     }
 
     /**
-     * Adds the file's size and relative path to the torrent on two separate lines.
-     * The path is relative to the common parent path specified in the first few lines.
+     * Hashes the pieces of the first {@code size} bytes of the file.
+     *
+     * @return the digests of the pieces in order, or just the root of the file in Merkle mode
+     * @throws IOException if the file could not be read, or is now shorter than the given size
      */
-    private void addMeta() {
-        try {
-            String meta = input.available() + NEW_LINE + relativeFilePath + NEW_LINE;
-            output.write(meta.getBytes());
-        }
-        catch (IOException e) {
-            log(e);
-        }
-    }
-
-    public void writeFileHash() {
-        addMeta();
-        hashChunks();
+    @Override
+    public byte[][] call() throws IOException {
+        byte[][] hashes = hashChunks(size);
+        if (tree == null) return hashes;
+        MerkleTree built = tree.build();
+        if (built == null) throw new IOException(input + " shrank while it was hashed");
+        return new byte[][]{built.getRoot()};
     }
 }
@@ -1,56 +1,79 @@
 package fileman.hash;
 
-import java.io.BufferedReader;
-import java.io.IOException;
+import fileman.torrent.TorrentMeta;
 
-import static fileman.hash.FileHashing.HASH_LINE_LENGTH;
-import static fileman.hash.FileHashing.hashPart;
-import static util.CommonlyUsed.getNumberOfPieces;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 /**
  * Checks if the expected and calculated hash for a given piece are the same.
+ * The expected hashes come from the {@link TorrentMeta} parsed when the torrent was loaded,
+ * and the calculated ones use the torrent's {@link DigestAlgorithm}.
+ * In Merkle mode the blocks of the piece are hashed and, together with the proof, lead to the root of the file.
+ * The digests of the blocks of a piece that failed can be proven the same way, to find out which blocks were wrong.
  *
- * @version 1.2
+ * @version 2.4
  */
 public class HashChecker {
 
     /**
-     * Reads the torrent, looking for inputFileName
-     * and positions the reader at the first byte of the hash.
-     *
-     * @param torrent       a {@link BufferedReader} of the torrent to read
-     * @param inputFileName the name of the input file to look for
-     * @return the size of the input file
-     * @throws IOException if reading or skipping bytes of the torrent fails
+     * @param meta  the torrent that contains the file
+     * @param file  the index of the file in the torrent
+     * @param piece the index of the piece in the file
+     * @param data  the contents of the piece, left untouched
+     * @return true if the data hashes to the expected hash of the piece
      */
-    static long skipOtherFileHashes(BufferedReader torrent, String inputFileName) throws IOException {
-        long fileSize;
-        String fileName;
-        do {
-            fileSize = Integer.parseInt(torrent.readLine());
-            fileName = torrent.readLine();
-
-            if (fileName.equals(inputFileName)) break;
+    public static boolean isCorrect(TorrentMeta meta, int file, int piece, ByteBuffer data) {
+        return meta.matches(file, piece, meta.getAlgorithm().digest(data.duplicate()));
+    }
 
-            long pieces = getNumberOfPieces(fileSize);
-            torrent.skip(pieces * HASH_LINE_LENGTH);
+    /**
+     * @param meta  the torrent that contains the file
+     * @param file  the index of the file in the torrent
+     * @param piece the index of the piece in the file
+     * @param data  the contents of the piece, left untouched
+     * @param proof the proof of the piece, used in Merkle mode only
+     * @return true if the data is the expected contents of the piece
+     */
+    public static boolean isCorrect(TorrentMeta meta, int file, int piece, ByteBuffer data, byte[][] proof) {
+        if (!meta.isMerkle()) return isCorrect(meta, file, piece, data);
+        if (piece < 0 || piece >= meta.getNumberOfPieces(file)) return false;
+        if (data.remaining() != meta.getPieceLength(file, piece)) return false;
 
-        } while (torrent.ready());
-        return fileSize;
+        DigestAlgorithm algorithm = meta.getAlgorithm();
+        byte[] leaves = MerkleTree.hashBlocks(algorithm, data.duplicate());
+        int leafCount = MerkleTree.getNumberOfLeaves(meta.getFileSize(file));
+        return MerkleTree.verify(algorithm, meta.getRoot(file), leafCount, MerkleTree.getFirstLeaf(piece),
+                leaves, proof);
     }
 
-    private static String readHash(BufferedReader torrentReader, String inputFileName, int pieceID) throws IOException {
-        torrentReader.readLine();  // Torrent ID
-        torrentReader.readLine();  // Total FileSize
-        torrentReader.readLine();  // Local path
-        skipOtherFileHashes(torrentReader, inputFileName);
-        torrentReader.skip(pieceID * HASH_LINE_LENGTH);
-        return torrentReader.readLine();
-    }
+    /**
+     * @param meta   the torrent that contains the file, in Merkle mode
+     * @param file   the index of the file in the torrent
+     * @param piece  the index of the piece in the file
+     * @param data   the contents of the piece, left untouched
+     * @param leaves the expected digests of the blocks of the piece, back to back
+     * @param proof  the proof of the piece
+     * @return the bitmap of the blocks that do not match their digests,
+     * or -1 if the digests and proof do not lead to the root of the file
+     */
+    public static long corruptBlocks(TorrentMeta meta, int file, int piece, ByteBuffer data, byte[] leaves,
+                                     byte[][] proof) {
+        if (!meta.isMerkle() || piece < 0 || piece >= meta.getNumberOfPieces(file)) return -1;
+        if (data.remaining() != meta.getPieceLength(file, piece)) return -1;
+
+        DigestAlgorithm algorithm = meta.getAlgorithm();
+        byte[] calculated = MerkleTree.hashBlocks(algorithm, data.duplicate());
+        if (leaves.length != calculated.length) return -1;
+        int leafCount = MerkleTree.getNumberOfLeaves(meta.getFileSize(file));
+        if (!MerkleTree.verify(algorithm, meta.getRoot(file), leafCount, MerkleTree.getFirstLeaf(piece), leaves, proof))
+            return -1;
 
-    public static boolean isCorrect(BufferedReader torrentReader, String inputFileName, int pieceIndex, byte[] piece) throws IOException {
-        String hashExpected = readHash(torrentReader, inputFileName, pieceIndex);
-        String hashCalculated = hashPart(piece, piece.length);
-        return hashCalculated.equals(hashExpected);
+        int length = algorithm.getLength();
+        long corrupt = 0;
+        for (int block = 0, from = 0; from < leaves.length; block++, from += length)
+            if (!Arrays.equals(leaves, from, from + length, calculated, from, from + length))
+                corrupt |= 1L << block;
+        return corrupt;
     }
 }
@@ -0,0 +1,87 @@
+package fileman.hash;
+
+import java.security.MessageDigest;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs bulk hashing, such as checking the pieces of local files, on a bounded pool with a worker per core.
+ * When the pool's queue is full the submitting thread hashes the piece itself, which slows it down to the pool's pace.
+ * Work that must never run on the submitting thread, as it may hold a lock, goes to {@link #background} instead.
+ * The digests themselves are computed by the {@link DigestAlgorithm} of the torrent.
+ *
+ * @version 2.1
+ */
+public class HashService {
+
+    private static final int WORKERS = Runtime.getRuntime().availableProcessors();
+    private static final int MAX_QUEUED = WORKERS * 4;
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+    private static final ThreadPoolExecutor POOL = new ThreadPoolExecutor(
+            WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(MAX_QUEUED),
+            r -> {
+                Thread t = new Thread(r, "hasher-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+    /** Queues without bound, so that it never runs a task on the caller. */
+    private static final ThreadPoolExecutor BACKGROUND = new ThreadPoolExecutor(
+            WORKERS, WORKERS, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(),
+            r -> {
+                Thread t = new Thread(r, "background-hasher-" + threadCount.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+
+    /** Compares two digests in time that does not depend on where they differ. */
+    public static boolean matches(byte[] expected, byte[] calculated) {
+        return MessageDigest.isEqual(expected, calculated);
+    }
+
+    /**
+     * Runs the task on the pool, or on the calling thread if the pool is saturated.
+     *
+     * @param task the task to run
+     * @return the result of the task
+     */
+    public static <T> Future<T> submit(Callable<T> task) {
+        return POOL.submit(task);
+    }
+
+    /**
+     * Queues the task to run on a thread of its own pool, never on the calling thread.
+     *
+     * @param task the task to run
+     */
+    public static void background(Runnable task) {
+        BACKGROUND.execute(task);
+    }
+
+    public static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @param hex    the hexadecimal representation of a digest
+     * @param length the length of the digest in bytes
+     * @return the digest, or null if the string is not a valid digest
+     */
+    public static byte[] fromHex(String hex, int length) {
+        if (hex == null || hex.length() != length * 2) return null;
+        byte[] hash = new byte[length];
+        for (int i = 0; i < length; i++) {
+            int high = Character.digit(hex.charAt(2 * i), 16);
+            int low = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (high == -1 || low == -1) return null;
+            hash[i] = (byte) ((high << 4) | low);
+        }
+        return hash;
+    }
+}
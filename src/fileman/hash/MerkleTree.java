@@ -0,0 +1,331 @@
+package fileman.hash;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import static util.CommonlyUsed.BLOCK_SIZE;
+import static util.CommonlyUsed.PIECE_SIZE;
+
+/**
+ * A binary hash tree over the blocks of a file.
+ * The leaves are the digests of the {@link util.CommonlyUsed#BLOCK_SIZE} blocks of the file,
+ * padded with zeroed digests up to a power of two, and every other node is the digest of its two children.
+ * A torrent in Merkle mode keeps only the root of every file.
+ * <p>
+ * Any run of consecutive blocks, a single block or a whole piece, is verified against the root with a proof:
+ * the siblings of the two ends of the run on every level, in order from the leaves up, left before right.
+ * A proof has at most two digests per level.
+ * Leaves and nodes are hashed with the {@link DigestAlgorithm} of the torrent.
+ * <p>
+ * Only the levels from {@link #STORED_LEVEL} up are kept in memory, a node for every 64 blocks, about a piece,
+ * so the tree of a file takes a 64th of the memory of its leaves.
+ * The lower nodes a proof needs are hashed again from the at most two runs of 64 blocks at the ends of the proven run.
+ * Trees are put together by a {@link Builder} from the digests of the blocks, in any order.
+ *
+ * @version 1.2
+ */
+public class MerkleTree {
+
+    public static final int BLOCKS_PER_PIECE = PIECE_SIZE / BLOCK_SIZE;
+    /** The most digests in a proof: two on each level of a tree with up to 2^31 leaves. */
+    public static final int MAX_PROOF_LENGTH = 2 * 31;
+    public static final byte[][] NO_PROOF = new byte[0][];
+    /** The lowest level kept in memory, whose nodes each cover 2^STORED_LEVEL blocks. */
+    static final int STORED_LEVEL = 6;
+    /** The most leaves of a tree, so that the width of the tree and the sizes of its levels fit in an int. */
+    private static final int MAX_LEAVES = 1 << 30;
+    /** The largest file a tree can be built over, 1 TiB. */
+    public static final long MAX_FILE_SIZE = (long) MAX_LEAVES * BLOCK_SIZE;
+
+    private final DigestAlgorithm algorithm;
+    private final int digestLength;
+    private final long size;
+    private final int leafCount;
+    private final int depth;
+    /** The lowest level kept, {@link #STORED_LEVEL} or the root of a smaller tree. */
+    private final int base;
+    /** The levels of the tree from {@link #base} up to the root, each holding its digests back to back. */
+    private final byte[][] levels;
+
+    private MerkleTree(DigestAlgorithm algorithm, long size, byte[] baseLevel) {
+        this.algorithm = algorithm;
+        this.digestLength = algorithm.getLength();
+        this.size = size;
+        this.leafCount = getNumberOfLeaves(size);
+        this.depth = Integer.numberOfTrailingZeros(width(leafCount));
+        this.base = Math.min(STORED_LEVEL, depth);
+        levels = new byte[depth - base + 1][];
+        levels[0] = baseLevel;
+        for (int level = 1; level < levels.length; level++)
+            levels[level] = parents(algorithm, levels[level - 1]);
+    }
+
+    /**
+     * Reads the file and builds its tree.
+     *
+     * @param algorithm the algorithm of the torrent
+     * @param input     the file
+     * @param size      the size of the file in the torrent
+     * @return the tree of the file
+     * @throws IOException if the file could not be read
+     */
+    public static MerkleTree build(DigestAlgorithm algorithm, File input, long size) throws IOException {
+        Builder builder = new Builder(algorithm, size);
+        ByteBuffer piece = ByteBuffer.allocate(PIECE_SIZE);
+        try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            for (long position = 0; position < size; position += PIECE_SIZE) {
+                piece.clear().limit((int) Math.min(PIECE_SIZE, size - position));
+                readFully(channel, piece, position);
+                builder.add((int) (position / BLOCK_SIZE), hashBlocks(algorithm, piece));
+            }
+        }
+        return builder.build();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining())
+            if (channel.read(buffer, position + buffer.position()) <= 0) break;
+        buffer.flip();
+    }
+
+    /**
+     * @return the number of leaves of the tree of a file of the given size, at least one
+     * @throws IllegalArgumentException if the file is larger than {@link #MAX_FILE_SIZE}
+     */
+    public static int getNumberOfLeaves(long size) {
+        if (size > MAX_FILE_SIZE)
+            throw new IllegalArgumentException("File of " + size + " bytes too large for a Merkle tree.");
+        return (int) Math.max(1, (size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    /** @return the index of the first leaf of the piece */
+    public static int getFirstLeaf(int piece) {
+        return piece * BLOCKS_PER_PIECE;
+    }
+
+    private static int width(int leafCount) {
+        int width = Integer.highestOneBit(leafCount);
+        return width < leafCount ? width << 1 : width;
+    }
+
+    private static byte[] parents(DigestAlgorithm algorithm, byte[] children) {
+        int length = algorithm.getLength();
+        byte[] parents = new byte[children.length / 2];
+        for (int offset = 0; offset < parents.length; offset += length)
+            System.arraycopy(algorithm.digest(children, 2 * offset, 2 * length), 0, parents, offset, length);
+        return parents;
+    }
+
+    /** @return the root of a subtree, from its leaves back to back */
+    private static byte[] subtreeRoot(DigestAlgorithm algorithm, byte[] leaves) {
+        byte[] nodes = leaves;
+        while (nodes.length > algorithm.getLength())
+            nodes = parents(algorithm, nodes);
+        return nodes;
+    }
+
+    private static byte[] node(byte[] level, int index, int length) {
+        byte[] node = new byte[length];
+        System.arraycopy(level, index * length, node, 0, length);
+        return node;
+    }
+
+    /**
+     * Hashes every block of the data, the last one possibly shorter.
+     *
+     * @param algorithm the algorithm of the torrent
+     * @param data      the data to hash, consumed by this call
+     * @return the digests of the blocks, back to back
+     */
+    public static byte[] hashBlocks(DigestAlgorithm algorithm, ByteBuffer data) {
+        int length = algorithm.getLength();
+        byte[] leaves = new byte[Math.max(1, (data.remaining() + BLOCK_SIZE - 1) / BLOCK_SIZE) * length];
+        for (int offset = 0; data.hasRemaining(); offset += length) {
+            ByteBuffer block = data.slice();
+            block.limit(Math.min(BLOCK_SIZE, block.remaining()));
+            data.position(data.position() + block.remaining());
+            System.arraycopy(algorithm.digest(block), 0, leaves, offset, length);
+        }
+        return leaves;
+    }
+
+    public byte[] getRoot() {
+        return levels[levels.length - 1].clone();
+    }
+
+    /**
+     * @param input the file the tree was built over
+     * @param from  the first leaf of the run
+     * @param to    the leaf after the last one of the run
+     * @return the proof of the run of leaves
+     * @throws IOException if the blocks at the ends of the run could not be read
+     */
+    public byte[][] proof(File input, int from, int to) throws IOException {
+        ArrayList<byte[]> proof = new ArrayList<>();
+        HashMap<Integer, byte[][]> runs = new HashMap<>(4);
+        try (FileChannel channel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+            for (int level = 0; level < depth; level++, from >>= 1, to = (to + 1) >> 1) {
+                if ((from & 1) == 1) proof.add(node(channel, runs, level, from - 1));
+                if ((to & 1) == 1) proof.add(node(channel, runs, level, to));
+            }
+        }
+        return proof.toArray(NO_PROOF);
+    }
+
+    /** @return a node of the tree, hashed again from the file if it is below the kept levels */
+    private byte[] node(FileChannel channel, HashMap<Integer, byte[][]> runs, int level, int index)
+            throws IOException {
+        if (level >= base) return node(levels[level - base], index, digestLength);
+        int run = index >> (base - level);
+        byte[][] lower = runs.get(run);
+        if (lower == null) {
+            lower = lowerLevels(channel, run);
+            runs.put(run, lower);
+        }
+        return node(lower[level], index - (run << (base - level)), digestLength);
+    }
+
+    /** @return the levels below {@link #base} of the subtree of a run of 2^base leaves, hashed from the file */
+    private byte[][] lowerLevels(FileChannel channel, int run) throws IOException {
+        int span = 1 << base;
+        byte[] leaves = new byte[span * digestLength];
+        long position = (long) run * span * BLOCK_SIZE;
+        if (position < size) {
+            ByteBuffer data = ByteBuffer.allocate((int) Math.min((long) span * BLOCK_SIZE, size - position));
+            readFully(channel, data, position);
+            byte[] digests = hashBlocks(algorithm, data);
+            System.arraycopy(digests, 0, leaves, 0, digests.length);
+        }
+        byte[][] lower = new byte[base][];
+        lower[0] = leaves;
+        for (int level = 1; level < base; level++)
+            lower[level] = parents(algorithm, lower[level - 1]);
+        return lower;
+    }
+
+    /**
+     * Puts a tree together from the digests of the blocks of a file, added in runs in any order.
+     * Every 2^{@link #STORED_LEVEL} leaves are folded into their node as soon as they are all in,
+     * so only the runs still partly added are held at once. Runs may be added from several threads.
+     */
+    public static class Builder {
+
+        private final DigestAlgorithm algorithm;
+        private final int length;
+        private final long size;
+        /** The number of blocks of the file, the leaves that are not padding. */
+        private final int blocks;
+        private final int span;
+        private final byte[] baseLevel;
+        /** The runs of leaves that are partly added, by index, with the number of leaves in each. */
+        private final HashMap<Integer, byte[]> partial = new HashMap<>();
+        private final HashMap<Integer, Integer> added = new HashMap<>();
+        private int complete = 0;
+
+        /**
+         * @param algorithm the algorithm of the torrent
+         * @param size      the size of the file in the torrent
+         * @throws IllegalArgumentException if the file is larger than {@link #MAX_FILE_SIZE}
+         */
+        public Builder(DigestAlgorithm algorithm, long size) {
+            this.algorithm = algorithm;
+            this.length = algorithm.getLength();
+            this.size = size;
+            int width = width(getNumberOfLeaves(size));
+            this.blocks = (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+            this.span = 1 << Math.min(STORED_LEVEL, Integer.numberOfTrailingZeros(width));
+            int runs = width / span;
+            this.baseLevel = new byte[Math.toIntExact((long) runs * length)];
+
+            // Runs past the end of the file hold padding only.
+            int used = (blocks + span - 1) / span;
+            if (used < runs) {
+                byte[] padding = subtreeRoot(algorithm, new byte[span * length]);
+                for (int run = used; run < runs; run++)
+                    System.arraycopy(padding, 0, baseLevel, run * length, length);
+            }
+        }
+
+        private int leavesIn(int run) {
+            return Math.min(span, blocks - run * span);
+        }
+
+        /**
+         * @param leaf    the index of the first leaf of the run
+         * @param digests the digests of consecutive blocks, back to back
+         */
+        public synchronized void add(int leaf, byte[] digests) {
+            int count = digests.length / length;
+            for (int i = 0; i < count; ) {
+                int run = (leaf + i) / span;
+                int offset = (leaf + i) - run * span;
+                int n = Math.min(count - i, span - offset);
+                byte[] leaves = partial.get(run);
+                if (leaves == null) {
+                    leaves = new byte[span * length];
+                    partial.put(run, leaves);
+                }
+                System.arraycopy(digests, i * length, leaves, offset * length, n * length);
+                int total = added.getOrDefault(run, 0) + n;
+                if (total < leavesIn(run)) added.put(run, total);
+                else {
+                    System.arraycopy(subtreeRoot(algorithm, leaves), 0, baseLevel, run * length, length);
+                    partial.remove(run);
+                    added.remove(run);
+                    complete++;
+                }
+                i += n;
+            }
+        }
+
+        /** @return the tree, or null if some blocks were never added */
+        public synchronized MerkleTree build() {
+            if (complete < (blocks + span - 1) / span) return null;
+            return new MerkleTree(algorithm, size, baseLevel);
+        }
+    }
+
+    /**
+     * Rebuilds the root from a run of leaves and its proof.
+     *
+     * @param algorithm the algorithm of the torrent
+     * @param root      the expected root
+     * @param leafCount the number of leaves of the tree
+     * @param from      the index of the first leaf of the run
+     * @param leaves    the digests of the run, back to back
+     * @param proof     the proof of the run
+     * @return true if the run and proof lead to the expected root
+     */
+    public static boolean verify(DigestAlgorithm algorithm, byte[] root, int leafCount, int from,
+                                 byte[] leaves, byte[][] proof) {
+        int length = algorithm.getLength();
+        int to = from + leaves.length / length;
+        if (from < 0 || from >= to || to > leafCount) return false;
+
+        byte[] nodes = leaves;
+        int next = 0;
+        for (int width = width(leafCount); width > 1; width >>= 1, from >>= 1, to = (to + 1) >> 1) {
+            int left = from & 1, right = to & 1;
+            if (next + left + right > proof.length) return false;
+            byte[] row = new byte[nodes.length + (left + right) * length];
+            if (left == 1) {
+                byte[] sibling = proof[next++];
+                if (sibling.length != length) return false;
+                System.arraycopy(sibling, 0, row, 0, length);
+            }
+            System.arraycopy(nodes, 0, row, left * length, nodes.length);
+            if (right == 1) {
+                byte[] sibling = proof[next++];
+                if (sibling.length != length) return false;
+                System.arraycopy(sibling, 0, row, row.length - length, length);
+            }
+            nodes = parents(algorithm, row);
+        }
+        return next == proof.length && HashService.matches(root, nodes);
+    }
+}
@@ -3,117 +3,89 @@ package fileman.torrent;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 
 import static java.lang.Math.min;
 import static util.CommonlyUsed.PIECE_SIZE;
 import static util.CommonlyUsed.getNumberOfPieces;
 import static util.Logger.log;
 
+/**
+ * Reads and writes the pieces of a local file with positional I/O on one channel.
+ * Positional reads and writes leave the file pointer alone, so any number of threads may read pieces
+ * while others are written, without a lock, and the page cache of the OS does the buffering.
+ * A piece can be read back as soon as it is set.
+ *
+ * @version 2.0
+ */
 public class BufferedRandomFile {
 
+    /** The most pieces requested or answered at once. */
     public static final int MAX_BUFFERS = 1000;
 
     private final RandomAccessFile raf;
+    private final FileChannel channel;
     private final long numberOfPieces;
     private final long fileSize;
-    private final byte[][] buffer;
-    private int startID = 0;
-    private boolean isFresh = true;
+    private volatile boolean written = false;
 
     BufferedRandomFile(File file, long fileSize) throws IOException {
         this.raf = new RandomAccessFile(file, "rw");
         if (raf.length() < fileSize) raf.setLength(fileSize);  // For newly created files.
+        this.channel = raf.getChannel();
         this.numberOfPieces = getNumberOfPieces(fileSize);
         this.fileSize = fileSize;
-        this.buffer = new byte[(int) min(numberOfPieces, MAX_BUFFERS)][];
     }
 
-    private synchronized void readChunk(int pieceID) {
-        try {  // It is likely that next call will require subsequent pieces only.
-            raf.seek(pieceID * PIECE_SIZE);
-        }
-        catch (IOException e) {
-            log(e);
-        }
-
-        startID = pieceID;
-        int remainingPieces = (int) (numberOfPieces - pieceID);
-        int lastPieceID = min(remainingPieces, MAX_BUFFERS) - 1;
-        for (int i = 0; i < lastPieceID; i++) {
-            buffer[i] = new byte[PIECE_SIZE];
-            try {
-                raf.read(buffer[i]);
-            }
-            catch (IOException e) {
-                log(e);
-            }
-        }
+    private void checkPieceID(int pieceID) {
+        if (pieceID < 0 || pieceID >= numberOfPieces)
+            throw new IndexOutOfBoundsException("Piece ID " + pieceID + " too high. File has " + numberOfPieces + " pieces.");
+    }
 
-        if (remainingPieces <= MAX_BUFFERS) {
-            int lastPieceSize = (int) (fileSize - (numberOfPieces - 1) * PIECE_SIZE);
-            buffer[lastPieceID] = new byte[lastPieceSize];
-        }
-        else buffer[lastPieceID] = new byte[PIECE_SIZE];
+    /**
+     * @return the contents of the piece, or null if they could not be read
+     * @throws ClosedChannelException if the file was closed, after which it must be opened again
+     */
+    byte[] getPiece(int pieceID) throws ClosedChannelException {
+        checkPieceID(pieceID);
+        long position = (long) pieceID * PIECE_SIZE;
+        ByteBuffer piece = ByteBuffer.allocate((int) min(PIECE_SIZE, fileSize - position));
         try {
-            raf.read(buffer[lastPieceID]);
+            while (piece.hasRemaining())
+                if (channel.read(piece, position + piece.position()) < 0) break;
+        }
+        catch (ClosedChannelException e) {
+            throw e;
         }
         catch (IOException e) {
             log(e);
+            return null;
         }
-        isFresh = false;
-    }
-
-    byte[] getPiece(int pieceID) {
-        if (pieceID >= numberOfPieces)
-            throw new IndexOutOfBoundsException("Piece ID " + pieceID + " too high. File has " + numberOfPieces + " pieces.");
-        if (isFresh) readChunk(pieceID);
-        if (pieceID < startID || pieceID >= MAX_BUFFERS + startID)
-            readChunk(pieceID);
-        return buffer[pieceID - startID];
+        return piece.array();
     }
 
-    private void writeCurrentAndReposition() {
+    void setPiece(int pieceID, ByteBuffer pieceData) {
+        checkPieceID(pieceID);
+        written = true;
+        ByteBuffer data = pieceData.duplicate();
+        long position = (long) pieceID * PIECE_SIZE;
         try {
-            if (raf.getFilePointer() != startID * PIECE_SIZE)
-                raf.seek(startID * PIECE_SIZE);
+            while (data.hasRemaining())
+                channel.write(data, position + data.position() - pieceData.position());
         }
         catch (IOException e) {
             log(e);
         }
-
-        int remainingPieces = (int) (numberOfPieces - startID);
-        int lastPieceID = min(remainingPieces, MAX_BUFFERS) - 1;
-        for (int i = 0; i <= lastPieceID; i++)
-            try {
-                // Leave empty space for every piece but the last.
-                if (buffer[i] == null) {
-                    if (i != lastPieceID)
-                        raf.skipBytes(PIECE_SIZE);
-                }
-                else {  // The last piece might have data, however.
-                    raf.write(buffer[i]);
-                    buffer[i] = null;
-                }
-            }
-            catch (IOException e) {
-                log(e);
-            }
     }
 
-    void setPiece(int pieceID, byte[] pieceData) {
-        if (pieceID >= numberOfPieces)
-            throw new IndexOutOfBoundsException("Piece ID " + pieceID + " too high. File has " + numberOfPieces + " pieces.");
-        if (pieceID < startID || pieceID >= MAX_BUFFERS + startID) {
-            writeCurrentAndReposition();
-            startID = pieceID;
-        }
-
-        buffer[pieceID - startID] = new byte[pieceData.length];
-        System.arraycopy(pieceData, 0, buffer[pieceID - startID], 0, pieceData.length);
+    /** @return true if pieces were set, so the file is being downloaded */
+    boolean hasWrites() {
+        return written;
     }
 
     void writeAndClose() {
-        writeCurrentAndReposition();
         try {
             raf.close();
         }
@@ -125,7 +97,6 @@ public class BufferedRandomFile {
     @Override
     public String toString() {
         return "{numberOfPieces=" + numberOfPieces +
-                " fileSize=" + fileSize +
-                " startID=" + startID + "}";
+                " fileSize=" + fileSize + "}";
     }
 }
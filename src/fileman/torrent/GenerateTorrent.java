@@ -1,100 +1,286 @@
 package fileman.torrent;
 
 import fileman.FileHandles;
+import fileman.hash.DigestAlgorithm;
 import fileman.hash.FileHashing;
+import fileman.hash.HashService;
+import fileman.hash.MerkleTree;
+import util.TimerWheel;
 
 import java.io.*;
-import java.security.NoSuchAlgorithmException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
 
+import static fileman.hash.FileHashing.HASH_LINE_LENGTH;
 import static fileman.hash.FileHashing.TORRENT_EXTENSION;
 import static fileman.torrent.Torrent.FILEPATH_SEPARATOR;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static util.CommonlyUsed.NEW_LINE;
 import static util.CommonlyUsed.print;
 import static util.Logger.log;
 
 /**
  * Generates a torrent file for the given files.
+ * The input is walked in parallel and the files are hashed on all cores,
+ * but their hashes are written in the same order as a sequential walk would write them.
+ * Progress and throughput are reported every second.
+ * <p>
+ * Torrents are written in the binary format of {@link TorrentMeta}:
+ * the sizes and paths of all the files are known after the walk, so the header and file table go first
+ * and the digests are streamed after them.
+ * With the {@value #TEXT_OPTION} option the text format is written instead, so that older nodes can read the torrent,
+ * whatever format messages are sent in.
+ * With the {@value #MERKLE_OPTION} option only the Merkle root of every file is written,
+ * and an option named after a {@link DigestAlgorithm}, such as -sha256 or -fast, selects the digest.
+ * The text format holds neither, it always has SHA-1 piece hashes.
+ * <p>
+ * Regenerating a torrent keeps its format, digest and mode, and reuses the hashes of every file whose path,
+ * size and modification time are the same as in the previous version, so only new and changed files are hashed.
+ * The new version is written next to the old one and replaces it in one atomic move once complete,
+ * so a torrent file is always either the old version or the new one.
  *
- * @version 2.2
+ * @version 3.9
  */
 public class GenerateTorrent implements Runnable {
 
     public static final String DIR = "torrents/";
+    /** Files hashed at the same time. Each reads ahead into a buffer of its own. */
+    private static final int READERS = 2;
+    private static final long PROGRESS_PERIOD = 1000;  // ms
+    public static final String MERKLE_OPTION = "-merkle";
+    public static final String TEXT_OPTION = "-text";
 
     private final String torrentId;
-    private final FileOutputStream output;
+    private final File torrentFile;
+    private final File temp;
+    private final DataOutputStream output;
+    private final boolean binary;
+    private final boolean merkle;
+    private final DigestAlgorithm algorithm;
+    /** The version of the torrent being regenerated, or null. */
+    private final TorrentMeta previous;
     private final String[] inputFilesNames;
     private File commonParent;
 
-    private GenerateTorrent(String torrentId, String... inputFilesNames) throws FileNotFoundException, NoSuchAlgorithmException {
+    private GenerateTorrent(String torrentId, boolean binary, boolean merkle, DigestAlgorithm algorithm,
+                            TorrentMeta previous, String... inputFilesNames) throws FileNotFoundException {
         this.torrentId = torrentId;
-        this.output = new FileOutputStream(DIR + torrentId + TORRENT_EXTENSION);
+        this.binary = binary;
+        this.merkle = merkle && binary;
+        this.algorithm = binary ? algorithm : DigestAlgorithm.SHA1;
+        this.previous = previous;
+        this.torrentFile = new File(DIR + torrentId + TORRENT_EXTENSION);
+        this.temp = new File(torrentFile.getPath() + ".tmp");
+        this.output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
         this.inputFilesNames = inputFilesNames;
     }
 
+    private static void start(String torrentID, boolean binary, boolean merkle, DigestAlgorithm algorithm,
+                              TorrentMeta previous, String[] parts, int firstFile) {
+        String[] filenames = new String[parts.length - firstFile];
+        System.arraycopy(parts, firstFile, filenames, 0, filenames.length);
+        GenerateTorrent gt;
+        try {
+            gt = new GenerateTorrent(torrentID, binary, merkle, algorithm, previous, filenames);
+        }
+        catch (FileNotFoundException e) {
+            print("Torrent " + torrentID + "generation failed.", e.getMessage());
+            log(e);
+            return;
+        }
+        new Thread(gt).start();
+    }
+
     static String getPathRelativeTo(File file, File parent) {
         return file.getAbsolutePath().substring(parent.getAbsolutePath().length() + 1);
     }
 
+    /** @param parts the command: gen [-text] [-merkle] [-sha1|-sha256|-fast] torrentID files... */
     public static void runNew(String[] parts) {
+        boolean binary = true;
+        boolean merkle = false;
+        DigestAlgorithm algorithm = DigestAlgorithm.SHA1;
+        int first = 1;
+        for (; first < parts.length && parts[first].startsWith("-"); first++) {
+            if (parts[first].equals(TEXT_OPTION)) {
+                binary = false;
+                continue;
+            }
+            if (parts[first].equals(MERKLE_OPTION)) {
+                merkle = true;
+                continue;
+            }
+            algorithm = DigestAlgorithm.fromName(parts[first].substring(1));
+            if (algorithm == null) {
+                print("Unknown option " + parts[first]);
+                return;
+            }
+        }
+        if (parts.length < first + 2) return;
+        if ((merkle || algorithm != DigestAlgorithm.SHA1) && !binary)
+            print("The options need the binary format, generating a text torrent with SHA-1 instead.");
+
+        start(parts[first], binary, merkle, algorithm, null, parts, first + 1);
+    }
+
+    /** @param parts the command: regen torrentID files... */
+    public static void runRegen(String[] parts) {
         if (parts.length < 3) return;
 
         String torrentID = parts[1];
-        String[] filenames = new String[parts.length - 2];
-        System.arraycopy(parts, 2, filenames, 0, filenames.length);
-        GenerateTorrent gt;
+        File torrentFile = new File(DIR + torrentID + TORRENT_EXTENSION);
+        boolean binary;
+        TorrentMeta previous;
         try {
-            gt = new GenerateTorrent(torrentID, filenames);
+            binary = TorrentMeta.isBinary(torrentFile);
+            previous = TorrentMeta.read(torrentFile);
         }
-        catch (FileNotFoundException | NoSuchAlgorithmException e) {
-            print("Torrent " + torrentID + "generation failed.", e.getMessage());
+        catch (IOException e) {
+            print("Torrent " + torrentID + " cannot be regenerated.", e.getMessage());
             log(e);
             return;
         }
-        new Thread(gt).start();
+        start(torrentID, binary, previous.isMerkle(), previous.getAlgorithm(), previous, parts, 2);
+    }
+
+    /**
+     * Lists the files under the given one, in the order in which they are written to the torrent.
+     * Directories are listed in parallel, and their listings are joined back in order.
+     */
+    private static class Walk extends RecursiveTask<List<File>> {
+
+        private static final long serialVersionUID = 1L;
+        private final File file;
+        private final LongAdder totalSize;
+
+        Walk(File file, LongAdder totalSize) {
+            this.file = file;
+            this.totalSize = totalSize;
+        }
+
+        @Override
+        protected List<File> compute() {
+            totalSize.add(file.length());
+            File[] contents = file.listFiles();
+            if (contents == null) return Collections.singletonList(file);
+
+            List<Walk> walks = new ArrayList<>(contents.length);
+            for (File f : contents) walks.add(new Walk(f, totalSize));
+            invokeAll(walks);
+            List<File> files = new ArrayList<>();
+            for (Walk walk : walks) files.addAll(walk.join());
+            return files;
+        }
+    }
+
+    /** Writes the block of a file in the text format: its size and path, then a line per piece hash. */
+    private void writeTextBlock(File file, long size, byte[][] hashes) throws IOException {
+        String path = getPathRelativeTo(file, commonParent);
+        StringBuilder sb = new StringBuilder(path.length() + 32 + hashes.length * HASH_LINE_LENGTH);
+        sb.append(size).append(NEW_LINE).append(path).append(NEW_LINE);
+        for (byte[] hash : hashes)
+            sb.append(HashService.toHex(hash)).append(NEW_LINE);
+        output.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return the hashes of every file that did not change since the previous version of the torrent,
+     * by index in the list, and null for the other files
+     */
+    private byte[][][] findUnchanged(List<File> files, long[] sizes, long[] modified) {
+        byte[][][] unchanged = new byte[files.size()][][];
+        if (previous == null || previous.isMerkle() != merkle || previous.getAlgorithm() != algorithm)
+            return unchanged;
+
+        HashMap<String, Integer> previousFiles = new HashMap<>();
+        for (int i = 0; i < previous.getNumberOfFiles(); i++)
+            previousFiles.put(previous.getFilename(i), i);
+        for (int i = 0; i < unchanged.length; i++) {
+            Integer p = previousFiles.get(getPathRelativeTo(files.get(i), commonParent));
+            if (p == null || previous.getModified(p) == 0) continue;
+            if (previous.getFileSize(p) == sizes[i] && previous.getModified(p) == modified[i])
+                unchanged[i] = previous.getHashes(p);
+        }
+        return unchanged;
     }
 
-    private void writeFileHash(File file) {
+    /**
+     * Hashes the files on {@link #READERS} threads and writes their hashes in the order of the list,
+     * as soon as every file before them is written. Files with known hashes are not read at all.
+     *
+     * @throws IOException if a file cannot be hashed, which fails the whole torrent
+     */
+    private void writeFileHashes(List<File> files, long[] sizes, byte[][][] known, AtomicLong hashedBytes)
+            throws IOException {
+        ExecutorService readers = Executors.newFixedThreadPool(READERS, r -> {
+            Thread t = new Thread(r, "torrent-reader");
+            t.setDaemon(true);
+            return t;
+        });
+        List<Future<byte[][]>> hashes = new ArrayList<>(files.size());
+        for (int i = 0; i < files.size(); i++)
+            hashes.add(known[i] != null
+                    ? CompletableFuture.completedFuture(known[i])
+                    : readers.submit(new FileHashing(files.get(i), sizes[i], hashedBytes, algorithm, merkle)));
         try {
-            FileInputStream input = new FileInputStream(file);
-            FileHashing hashing = new FileHashing(input, getPathRelativeTo(file, commonParent), output);
-            hashing.writeFileHash();
-            input.close();
+            for (int i = 0; i < hashes.size(); i++) {
+                byte[][] fileHashes;
+                try {
+                    fileHashes = hashes.get(i).get();
+                }
+                catch (InterruptedException | ExecutionException e) {
+                    throw new IOException("Could not hash " + files.get(i), e);
+                }
+                if (binary)
+                    for (byte[] hash : fileHashes) output.write(hash);
+                else
+                    writeTextBlock(files.get(i), sizes[i], fileHashes);
+            }
         }
-        catch (NoSuchAlgorithmException | IOException e) {
-            log(e);
+        finally {
+            readers.shutdownNow();  // Every file is hashed by now, unless one failed.
         }
     }
 
-    private void recursiveFileHash(File file) {
-        File[] contents = file.listFiles();
-        if (contents == null) writeFileHash(file);
-        else for (File f : contents) recursiveFileHash(f);
+    /** Refuses files a Merkle tree cannot be built over, before anything is written. */
+    private static void checkMerkleSizes(List<File> files, long[] sizes) throws IOException {
+        for (int i = 0; i < sizes.length; i++)
+            if (sizes[i] > MerkleTree.MAX_FILE_SIZE)
+                throw new IOException(files.get(i) + " is too large for a Merkle tree");
     }
 
-    private long totalFileSize(File file) {
-        long size = file.length();
-        File[] subFiles = file.listFiles();
-        if (subFiles != null)
-            for (File subFile : subFiles)
-                size += totalFileSize(subFile);
-        return size;
+    private static String formatProgress(long hashed, long total, long elapsed) {
+        double mb = hashed / 1e6;
+        double rate = elapsed == 0 ? 0 : mb / (elapsed / 1e3);
+        return String.format("Hashed %.1f of %.1f MB (%.1f MB/s)", mb, total / 1e6, rate);
     }
 
     /**
-     * Adds the torrent's id, the total size of all files, and the local parent path
-     * as the first three lines in the torrent.
+     * Writes what precedes the hashes.
+     * In the text format these are the torrent's id, the total size of all files, and the local parent path,
+     * as the first three lines. In the binary format they are the header and the file table.
      *
      * @param totalSize the total size computed by the caller.
      */
-    private void addTorrentMeta(long totalSize) {
-        String meta = torrentId + NEW_LINE + totalSize + NEW_LINE + commonParent.getAbsolutePath() + NEW_LINE;
-        try {
+    private void addTorrentMeta(long totalSize, List<File> files, long[] sizes, long[] modified) throws IOException {
+        if (!binary) {
+            String meta = torrentId + NEW_LINE + totalSize + NEW_LINE + commonParent.getAbsolutePath() + NEW_LINE;
             output.write(meta.getBytes());
+            return;
         }
-        catch (IOException e) {
-            log(e);
-        }
+        String[] paths = new String[files.size()];
+        for (int i = 0; i < paths.length; i++)
+            paths[i] = getPathRelativeTo(files.get(i), commonParent);
+        TorrentMeta.writeHeader(output, torrentId, totalSize, commonParent.getAbsolutePath(),
+                paths, sizes, modified, merkle, algorithm);
     }
 
     private boolean sameCharAt(File[] inputFiles, int position) {
@@ -129,21 +315,56 @@ public class GenerateTorrent implements Runnable {
     public void run() {
 
         File[] inputFiles = new File[inputFilesNames.length];
-        long totalSize = 0;
+        LongAdder totalSize = new LongAdder();
+        List<File> files = new ArrayList<>();
         for (int i = 0; i < inputFilesNames.length; i++) {
             inputFiles[i] = new File(inputFilesNames[i]);
-            totalSize += totalFileSize(inputFiles[i]);
+            files.addAll(ForkJoinPool.commonPool().invoke(new Walk(inputFiles[i], totalSize)));
+        }
+        long[] sizes = new long[files.size()];
+        long[] modified = new long[files.size()];
+        for (int i = 0; i < sizes.length; i++) {
+            modified[i] = files.get(i).lastModified();
+            sizes[i] = files.get(i).length();
         }
 
         determineCommonParent(inputFiles);
         print(commonParent.getAbsolutePath());
 
-        print("Writing torrent meta...");
-        addTorrentMeta(totalSize);
-        print("Writing hashes...");
-        for (File f : inputFiles) recursiveFileHash(f);
+        byte[][][] unchanged = findUnchanged(files, sizes, modified);
+        long dataSize = 0;
+        int reused = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            if (unchanged[i] == null) dataSize += sizes[i];
+            else reused++;
+        }
+        if (previous != null) print("Reusing the hashes of " + reused + " unchanged files.");
+
+        AtomicLong hashedBytes = new AtomicLong();
+        long start = System.currentTimeMillis();
+        long total = dataSize;
+        TimerWheel.Timeout progress = TimerWheel.every(PROGRESS_PERIOD, () ->
+                print(formatProgress(hashedBytes.get(), total, System.currentTimeMillis() - start)));
+        try {
+            if (merkle) checkMerkleSizes(files, sizes);
+            print("Writing torrent meta...");
+            addTorrentMeta(totalSize.sum(), files, sizes, modified);
+            print("Writing hashes of " + files.size() + " files...");
+            writeFileHashes(files, sizes, unchanged, hashedBytes);
+            output.close();
+            Files.move(temp.toPath(), torrentFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            progress.cancel();
+            temp.delete();
+            print("Torrent " + torrentId + " generation failed.", e.getMessage());
+            log(e);
+            return;
+        }
+        progress.cancel();
+        print(formatProgress(hashedBytes.get(), total, System.currentTimeMillis() - start));
         print("Torrent generated successfully!");
-        FileHandles.addNewLocalTorrent(new File(DIR + torrentId + TORRENT_EXTENSION), commonParent.getAbsolutePath());
+        FileHandles.addNewLocalTorrent(torrentFile, commonParent.getAbsolutePath());
 
     }
 }
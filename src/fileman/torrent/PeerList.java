@@ -0,0 +1,81 @@
+package fileman.torrent;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An array backed set of {@link PeerTable} indices.
+ * Removing swaps the last peer into the freed slot, so the peers stay packed
+ * and picking a random one is a single array access.
+ * Writers lock and publish a changed copy of the array, so readers never lock.
+ *
+ * @version 1.1
+ */
+public class PeerList {
+
+    public static final int NONE = -1;
+
+    /** Never changed once published. */
+    private volatile int[] peers = new int[0];
+
+    private static int indexOf(int[] peers, int peer) {
+        for (int i = 0; i < peers.length; i++)
+            if (peers[i] == peer)
+                return i;
+        return NONE;
+    }
+
+    /** @return true if the peer was not in the list already */
+    public synchronized boolean add(int peer) {
+        int[] current = peers;
+        if (indexOf(current, peer) != NONE) return false;
+        int[] copy = Arrays.copyOf(current, current.length + 1);
+        copy[current.length] = peer;
+        peers = copy;
+        return true;
+    }
+
+    /** @return true if the peer was in the list */
+    public synchronized boolean remove(int peer) {
+        int[] current = peers;
+        int i = indexOf(current, peer);
+        if (i == NONE) return false;
+        int[] copy = Arrays.copyOf(current, current.length - 1);
+        if (i < copy.length) copy[i] = current[current.length - 1];
+        peers = copy;
+        return true;
+    }
+
+    public boolean contains(int peer) {
+        return indexOf(peers, peer) != NONE;
+    }
+
+    public int size() {
+        return peers.length;
+    }
+
+    public boolean isEmpty() {
+        return peers.length == 0;
+    }
+
+    /** @return a random peer from the list, or {@link #NONE} if it is empty */
+    public int random() {
+        int[] current = peers;
+        return current.length == 0 ? NONE : current[ThreadLocalRandom.current().nextInt(current.length)];
+    }
+
+    public int[] toArray() {
+        return peers.clone();
+    }
+
+    @Override
+    public String toString() {
+        int[] all = peers;
+        StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < all.length; i++) {
+            if (i > 0) sb.append(", ");
+            sb.append(PeerTable.get(all[i]));
+        }
+        return sb.append("]").toString();
+    }
+}
@@ -0,0 +1,58 @@
+package fileman.torrent;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static communication.interaction.SocketInitializer.me;
+
+/**
+ * Interns the address of every peer seen by this node to a small, dense int.
+ * Piece ownership is tracked by these ints instead of by {@link InetAddress} instances.
+ * Indices are never reused, so a peer that comes back keeps its index.
+ *
+ * @version 1.0
+ */
+public class PeerTable {
+
+    private static final ConcurrentHashMap<InetAddress, Integer> INDICES = new ConcurrentHashMap<>();
+    private static volatile InetAddress[] peers = new InetAddress[16];
+    private static int size = 0;
+
+    /**
+     * @param peer the address of a peer
+     * @return the index of the peer, assigning a new one if it has none yet
+     */
+    public static int intern(InetAddress peer) {
+        Integer index = INDICES.get(peer);
+        if (index != null) return index;
+        return INDICES.computeIfAbsent(peer, PeerTable::assign);
+    }
+
+    private static synchronized int assign(InetAddress peer) {
+        if (size == peers.length) {
+            InetAddress[] grown = new InetAddress[size * 2];
+            System.arraycopy(peers, 0, grown, 0, size);
+            peers = grown;
+        }
+        peers[size] = peer;
+        return size++;
+    }
+
+    /**
+     * @param peer the address of a peer
+     * @return the index of the peer, or -1 if it was never interned
+     */
+    public static int indexOf(InetAddress peer) {
+        Integer index = INDICES.get(peer);
+        return index == null ? -1 : index;
+    }
+
+    /** @return the index of this host, or -1 if its address is unknown */
+    public static int me() {
+        return me == null ? -1 : intern(me);
+    }
+
+    public static InetAddress get(int index) {
+        return peers[index];
+    }
+}
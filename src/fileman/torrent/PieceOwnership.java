@@ -0,0 +1,207 @@
+package fileman.torrent;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Tracks which peers own which pieces of a single file.
+ * Every peer that owns at least one piece has a bitset with a bit per piece,
+ * indexed by the peer's {@link PeerTable} index.
+ * Adding, checking and removing ownership of a piece are O(1),
+ * and forgetting a peer altogether drops its bitset.
+ * Every piece owned by other peers also has a {@link PeerList} of them, to pick one in O(1).
+ * The list is created with the first such owner and dropped with the last, and this node is never in it,
+ * as owners are only looked up for the pieces it is missing. A seeder therefore has no lists at all.
+ * Changes are also applied to a {@link RarityIndex} of the pieces this node is missing.
+ * Readers never lock, writers lock the ownership so that the index stays in step with the bitsets.
+ * Pieces out of range, as may come from other peers, are ignored before anything changes.
+ *
+ * @version 1.6
+ */
+class PieceOwnership {
+
+    private final int numberOfPieces;
+    private final int words;
+    private final RarityIndex rarity;
+    /** The owners of every piece other than this node, null if there are none. Written under the lock. */
+    private final AtomicReferenceArray<PeerList> owners;
+    /** The bitsets by peer index. Never changed once published: writers swap in a changed copy under the lock. */
+    private volatile AtomicLongArray[] byPeer = new AtomicLongArray[0];
+
+    PieceOwnership(int numberOfPieces) {
+        this.numberOfPieces = numberOfPieces;
+        this.words = (numberOfPieces + 63) >>> 6;
+        this.rarity = new RarityIndex(numberOfPieces);
+        this.owners = new AtomicReferenceArray<>(numberOfPieces);
+    }
+
+    int getNumberOfPieces() {
+        return numberOfPieces;
+    }
+
+    private boolean isPiece(int piece) {
+        return piece >= 0 && piece < numberOfPieces;
+    }
+
+    private AtomicLongArray bitsOf(int peer) {
+        AtomicLongArray[] bits = byPeer;
+        return peer >= 0 && peer < bits.length ? bits[peer] : null;
+    }
+
+    /** Publishes a copy of the bitsets with a new one for the peer. The caller holds the lock. */
+    private AtomicLongArray createBitsOf(int peer) {
+        AtomicLongArray[] bits = byPeer;
+        AtomicLongArray[] copy = Arrays.copyOf(bits, Math.max(bits.length, peer + 1));
+        copy[peer] = new AtomicLongArray(words);
+        byPeer = copy;
+        return copy[peer];
+    }
+
+    /**
+     * @return true if the peer did not already own the piece, false as well if there is no such piece
+     */
+    synchronized boolean add(int piece, int peer) {
+        if (peer < 0 || !isPiece(piece)) return false;
+        AtomicLongArray bits = bitsOf(peer);
+        if (bits == null) bits = createBitsOf(peer);
+        long mask = 1L << piece;
+        int word = piece >>> 6;
+        long old = bits.get(word);
+        if ((old & mask) != 0) return false;
+        bits.set(word, old | mask);
+
+        if (peer == PeerTable.me()) rarity.acquire(piece);
+        else {
+            addOwner(piece, peer);
+            rarity.increment(piece);
+        }
+        return true;
+    }
+
+    boolean owns(int piece, int peer) {
+        if (!isPiece(piece)) return false;
+        AtomicLongArray bits = bitsOf(peer);
+        return bits != null && (bits.get(piece >>> 6) & (1L << piece)) != 0;
+    }
+
+    /** @return true if the peer owns every piece of the file */
+    boolean ownsAll(int peer) {
+        AtomicLongArray bits = bitsOf(peer);
+        if (bits == null) return numberOfPieces == 0;
+        for (int w = 0; w < words; w++) {
+            long expected = w == words - 1 && (numberOfPieces & 63) != 0 ? (1L << numberOfPieces) - 1 : -1L;
+            if (bits.get(w) != expected) return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the peer owned the piece
+     */
+    synchronized boolean remove(int piece, int peer) {
+        if (!isPiece(piece)) return false;
+        AtomicLongArray bits = bitsOf(peer);
+        if (bits == null) return false;
+        long mask = 1L << piece;
+        int word = piece >>> 6;
+        long old = bits.get(word);
+        if ((old & mask) == 0) return false;
+        bits.set(word, old & ~mask);
+
+        if (peer == PeerTable.me()) rarity.lose(piece);
+        else {
+            removeOwner(piece, peer);
+            rarity.decrement(piece);
+        }
+        return true;
+    }
+
+    /** Adds the peer to the list of the piece, creating it if it is the first owner. The caller holds the lock. */
+    private void addOwner(int piece, int peer) {
+        PeerList list = owners.get(piece);
+        if (list == null) {
+            list = new PeerList();
+            list.add(peer);
+            owners.set(piece, list);
+        }
+        else list.add(peer);
+    }
+
+    /** Removes the peer from the list of the piece, dropping it once empty. The caller holds the lock. */
+    private void removeOwner(int piece, int peer) {
+        PeerList list = owners.get(piece);
+        if (list == null) return;
+        list.remove(peer);
+        if (list.isEmpty()) owners.set(piece, null);
+    }
+
+    /** Forgets every piece the peer owns. */
+    synchronized void remove(int peer) {
+        AtomicLongArray bits = bitsOf(peer);
+        if (bits == null) return;
+        AtomicLongArray[] copy = byPeer.clone();
+        copy[peer] = null;
+        byPeer = copy;
+
+        boolean me = peer == PeerTable.me();
+        for (int w = 0; w < words; w++) {
+            long word = bits.get(w);
+            while (word != 0) {
+                int piece = (w << 6) + Long.numberOfTrailingZeros(word);
+                if (me) rarity.lose(piece);
+                else {
+                    removeOwner(piece, peer);
+                    rarity.decrement(piece);
+                }
+                word &= word - 1;
+            }
+        }
+    }
+
+    /** @return a copy of the bitset of the pieces the peer owns, a bit per piece */
+    long[] getPieces(int peer) {
+        long[] pieces = new long[words];
+        AtomicLongArray bits = bitsOf(peer);
+        if (bits != null)
+            for (int w = 0; w < words; w++)
+                pieces[w] = bits.get(w);
+        return pieces;
+    }
+
+    /** {@link RarityIndex#rarest(int)} */
+    synchronized int[] rarestMissing(int max) {
+        return rarity.rarest(max);
+    }
+
+    /** @return the number of owners of every piece */
+    int[] countOwners() {
+        int[] counts = new int[numberOfPieces];
+        for (AtomicLongArray bits : byPeer) {
+            if (bits == null) continue;
+            for (int w = 0; w < words; w++) {
+                long word = bits.get(w);
+                while (word != 0) {
+                    counts[(w << 6) + Long.numberOfTrailingZeros(word)]++;
+                    word &= word - 1;
+                }
+            }
+        }
+        return counts;
+    }
+
+    /** @return the peers other than this node that own the piece, or null if there are none */
+    PeerList getOwners(int piece) {
+        return isPiece(piece) ? owners.get(piece) : null;
+    }
+
+    /** @return every peer that owns the piece, this node included, looked up in the bitsets */
+    int[] ownersOf(int piece) {
+        AtomicLongArray[] bits = byPeer;
+        int[] found = new int[bits.length];
+        int n = 0;
+        for (int peer = 0; peer < bits.length; peer++)
+            if (owns(piece, peer)) found[n++] = peer;
+        return Arrays.copyOf(found, n);
+    }
+}
@@ -0,0 +1,108 @@
+package fileman.torrent;
+
+import java.util.Arrays;
+
+/**
+ * A bucket queue of the pieces of a file that this node is missing, keyed by their number of owners.
+ * Each bucket is an intrusive doubly linked list over the piece ids, so moving a piece to the
+ * next or previous bucket when an owner is added or removed is O(1), and so is finding the rarest piece.
+ * Pieces with no owners stay in bucket 0 and are never handed out.
+ * Not thread safe, {@link PieceOwnership} guards it.
+ *
+ * @version 1.0
+ */
+class RarityIndex {
+
+    private static final int NONE = -1;
+
+    private final int[] owners;
+    private final int[] next;
+    private final int[] previous;
+    private final boolean[] missing;
+    private int[] heads = {NONE, NONE, NONE, NONE};
+    /** No bucket from 1 up to this one has a piece in it. */
+    private int lowest = 1;
+
+    RarityIndex(int numberOfPieces) {
+        owners = new int[numberOfPieces];
+        next = new int[numberOfPieces];
+        previous = new int[numberOfPieces];
+        missing = new boolean[numberOfPieces];
+        for (int piece = 0; piece < numberOfPieces; piece++) {
+            missing[piece] = true;
+            link(piece);
+        }
+    }
+
+    private void link(int piece) {
+        int count = owners[piece];
+        if (count >= heads.length) {
+            int length = heads.length;
+            heads = Arrays.copyOf(heads, Math.max(count + 1, length * 2));
+            Arrays.fill(heads, length, heads.length, NONE);
+        }
+        int head = heads[count];
+        previous[piece] = NONE;
+        next[piece] = head;
+        if (head != NONE) previous[head] = piece;
+        heads[count] = piece;
+        if (count >= 1 && count < lowest) lowest = count;
+    }
+
+    private void unlink(int piece) {
+        int p = previous[piece], n = next[piece];
+        if (p == NONE) heads[owners[piece]] = n;
+        else next[p] = n;
+        if (n != NONE) previous[n] = p;
+    }
+
+    /** Another peer now owns the piece. */
+    void increment(int piece) {
+        if (missing[piece]) unlink(piece);
+        owners[piece]++;
+        if (missing[piece]) link(piece);
+    }
+
+    /** A peer no longer owns the piece. */
+    void decrement(int piece) {
+        if (owners[piece] == 0) return;
+        if (missing[piece]) unlink(piece);
+        owners[piece]--;
+        if (missing[piece]) link(piece);
+    }
+
+    /** This node now owns the piece, so it is no longer handed out. */
+    void acquire(int piece) {
+        if (!missing[piece]) return;
+        unlink(piece);
+        missing[piece] = false;
+    }
+
+    /** This node no longer owns the piece, so it has to be downloaded again. */
+    void lose(int piece) {
+        if (missing[piece]) return;
+        missing[piece] = true;
+        link(piece);
+    }
+
+    /** @return the missing piece with the fewest (but at least one) owners, or -1 if there is none */
+    int rarest() {
+        while (lowest < heads.length && heads[lowest] == NONE)
+            lowest++;
+        return lowest < heads.length ? heads[lowest] : NONE;
+    }
+
+    /**
+     * @param max the most pieces to return
+     * @return up to max missing pieces that have an owner, rarest first
+     */
+    int[] rarest(int max) {
+        int[] pieces = new int[max];
+        int n = 0;
+        if (rarest() != NONE)
+            for (int count = lowest; count < heads.length && n < max; count++)
+                for (int piece = heads[count]; piece != NONE && n < max; piece = next[piece])
+                    pieces[n++] = piece;
+        return n == max ? pieces : Arrays.copyOf(pieces, n);
+    }
+}
@@ -0,0 +1,131 @@
+package fileman.torrent;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static util.Logger.log;
+
+/**
+ * The fast-resume state of a torrent, kept next to it in a file with the {@link #EXTENSION} extension.
+ * For every local file it records the size, the modification time and a bitmap of the pieces verified in it.
+ * A file whose size and modification time have not changed since is trusted without hashing it again.
+ *
+ * @version 1.1
+ */
+class ResumeData {
+
+    static final String EXTENSION = ".resume";
+    private static final int MAGIC = 0x46445352;  // "FDSR"
+    private static final int VERSION = 1;
+
+    private final String localFolder;
+    private final HashMap<String, Entry> entries = new HashMap<>();
+
+    ResumeData(String localFolder) {
+        this.localFolder = localFolder;
+    }
+
+    static File fileOf(File torrentFile) {
+        return new File(torrentFile.getAbsolutePath() + EXTENSION);
+    }
+
+    /**
+     * @param torrentFile the torrent to load the resume state of
+     * @param localFolder the folder the torrent's files are in now
+     * @return the saved state, or an empty one if there is none or it is for another folder
+     */
+    static ResumeData load(File torrentFile, String localFolder) {
+        ResumeData resume = new ResumeData(localFolder);
+        File file = fileOf(torrentFile);
+        if (!file.exists()) return resume;
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) return resume;
+            if (!in.readUTF().equals(localFolder)) return resume;
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String filename = in.readUTF();
+                long size = in.readLong();
+                long modified = in.readLong();
+                int pieces = in.readInt();
+                long[] verified = new long[(pieces + 63) >>> 6];
+                for (int w = 0; w < verified.length; w++)
+                    verified[w] = in.readLong();
+                resume.entries.put(filename, new Entry(size, modified, pieces, verified));
+            }
+        }
+        catch (IOException e) {
+            log(e);
+            resume.entries.clear();  // A partly read state is not trusted.
+        }
+        return resume;
+    }
+
+    /**
+     * @param filename the name of the file in the torrent
+     * @param local    the local copy of the file
+     * @param pieces   the number of pieces in the file
+     * @return the bitmap of verified pieces, or null if the file changed since it was verified
+     */
+    long[] getVerified(String filename, File local, int pieces) {
+        Entry entry = entries.get(filename);
+        if (entry == null || entry.pieces != pieces) return null;
+        if (entry.size != local.length() || entry.modified != local.lastModified()) return null;
+        return entry.verified;
+    }
+
+    void put(String filename, File local, int pieces, long[] verified) {
+        entries.put(filename, new Entry(local.length(), local.lastModified(), pieces, verified));
+    }
+
+    /** Writes the state to a temporary file and moves it into place at once, so that a crash never leaves half of it behind. */
+    void save(File torrentFile) {
+        File file = fileOf(torrentFile);
+        File temp = new File(file.getAbsolutePath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(localFolder);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                Entry entry = e.getValue();
+                out.writeUTF(e.getKey());
+                out.writeLong(entry.size);
+                out.writeLong(entry.modified);
+                out.writeInt(entry.pieces);
+                for (long word : entry.verified)
+                    out.writeLong(word);
+            }
+        }
+        catch (IOException e) {
+            log(e);
+            temp.delete();
+            return;
+        }
+        try {
+            Files.move(temp.toPath(), file.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            log(e);
+            temp.delete();
+        }
+    }
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final int pieces;
+        final long[] verified;
+
+        Entry(long size, long modified, int pieces, long[] verified) {
+            this.size = size;
+            this.modified = modified;
+            this.pieces = pieces;
+            this.verified = verified;
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package fileman.torrent;
+
+import util.PeriodicTask;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Verifies the pieces this host seeds again in the background,
+ * so that data that rotted on disk or was changed by another program is no longer passed on.
+ * Every period the scrubber reads a slice of its budget of {@link #RATE} bytes per second,
+ * which bounds both the disk reads and the hashing.
+ * It skips any period in which a piece was read for an upload, so uploads always come first.
+ * Pieces that no longer match are withdrawn: this host stops answering for them and uploading them,
+ * and the resume state forgets them.
+ *
+ * @version 1.0
+ */
+public class Scrubber extends PeriodicTask {
+
+    /** The most bytes read per second, set with -Dfds.scrub.rate. Zero turns the scrubber off. */
+    public static final long RATE = Long.getLong("fds.scrub.rate", 4L << 20);
+    public static final long PERIOD = 250;  // ms
+    private static final long BUDGET = Math.max(1, RATE * PERIOD / 1000);
+
+    private static volatile long lastUploadRead;
+
+    private final Collection<Torrent> torrents;
+    private int next = 0;
+
+    /** @param torrents a live view of the local torrents */
+    public Scrubber(Collection<Torrent> torrents) {
+        this.torrents = torrents;
+    }
+
+    /** Notes that a piece was just read for an upload. */
+    static void uploadRead() {
+        lastUploadRead = System.currentTimeMillis();
+    }
+
+    @Override
+    public void run() {
+        if (System.currentTimeMillis() - lastUploadRead < PERIOD) return;
+
+        List<Torrent> snapshot = new ArrayList<>(torrents);
+        if (snapshot.isEmpty()) return;
+        long budget = BUDGET;
+        // Every period starts at another torrent, so that one large torrent does not take all the budget.
+        next = (next + 1) % snapshot.size();
+        for (int i = 0; i < snapshot.size() && budget > 0; i++)
+            budget -= snapshot.get((next + i) % snapshot.size()).scrub(budget);
+    }
+}
@@ -3,78 +3,127 @@ package fileman.torrent;
 import communication.owners.FileOwnerAsker;
 import communication.structures.Message;
 import fileman.hash.FileHashChecker;
+import fileman.hash.HashChecker;
+import fileman.hash.HashService;
+import fileman.hash.MerkleTree;
 
 import java.io.*;
 import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Consumer;
 
-import static communication.interaction.SocketInitializer.me;
 import static communication.interaction.SocketInitializer.multicastMessage;
 import static communication.structures.Message.Types.I_HAVE;
-import static fileman.hash.FileHashing.HASH_LINE_LENGTH;
-import static fileman.torrent.GenerateTorrent.getPathRelativeTo;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
 import static util.CommonlyUsed.*;
 import static util.Logger.log;
 
 /**
  * Tracks all the peers that have pieces of a given torrent.
  *
- * @version 1.2
+ * @version 2.6
  */
 public class Torrent implements Runnable {
 
     public static final String FILEPATH_SEPARATOR = "/";
-    private final BufferedReader reader;
     private final String id;
-    private final long totalSize;
     private final FileOwnerAsker asker;
+    /*
+     * Every file of the torrent has a dense index, assigned in the order of the torrent file.
+     * The meta and the arrays below are indexed by it and never change size, so lookups by index need no lock.
+     */
+    private final TorrentMeta meta;
+    private final PieceOwnership[] filePieces;
+    private final Map<String, Integer> indices;
+    private volatile File[] files;
+    /** Guarded by this. */
+    private final RandomAccessFile[] rafs;
+    /** The open local files, opened on first use and replaced if found closed. Read without locking. */
+    private final AtomicReferenceArray<BufferedRandomFile> fReaders;
+    /** The Merkle trees of complete local files, built in the background once they are complete. Guarded by this. */
+    private final MerkleTree[] trees;
     /**
-     * Maps each file of the torrent to a list of its pieces.
-     * Each piece is represented by a set of peers that own it.
+     * The proofs of received pieces of Merkle torrents, by file and piece, to pass on with the pieces.
+     * Those of a file are dropped once its tree is built. Guarded by this.
      */
-    private final LinkedHashMap<File, ArrayList<LinkedHashSet<InetAddress>>> filePieces = new LinkedHashMap<>();
-    private final LinkedHashMap<String, RandomAccessFile> rafs = new LinkedHashMap<>();
-    private final LinkedHashMap<String, BufferedRandomFile> fReaders = new LinkedHashMap<>();
-    private final LinkedHashMap<String, Long> fileSizes = new LinkedHashMap<>();
+    private final Map<Long, byte[][]> proofs = new HashMap<>();
     private File torrentFile;
     private File localFolder;
+    /** Set once the torrent is replaced, after which its files are not opened again. */
+    private volatile boolean stopped = false;
+    /* Where the scrubber carries on from, used by the scrubber's thread only. */
+    private int scrubFile, scrubPiece;
+    private ByteBuffer scrubBuffer;
 
     public Torrent(File torrentFile) throws IOException {
         this.torrentFile = torrentFile;
-        this.reader = new BufferedReader(new FileReader(this.torrentFile));
-        this.id = reader.readLine();
-        this.totalSize = Long.parseLong(reader.readLine());
-        this.localFolder = new File(reader.readLine());
+        this.meta = TorrentMeta.read(torrentFile);
+        this.id = meta.getId();
+        this.localFolder = new File(meta.getLocalFolder());
         this.asker = new FileOwnerAsker(this);
+
+        int n = meta.getNumberOfFiles();
+        filePieces = new PieceOwnership[n];
+        HashMap<String, Integer> indices = new HashMap<>(n * 2);
+        for (int i = 0; i < n; i++) {
+            filePieces[i] = new PieceOwnership(meta.getNumberOfPieces(i));
+            indices.put(meta.getFilename(i), i);
+        }
+        this.indices = Collections.unmodifiableMap(indices);
+        this.files = resolveFiles();
+        this.rafs = new RandomAccessFile[n];
+        this.fReaders = new AtomicReferenceArray<>(n);
+        this.trees = new MerkleTree[n];
     }
 
     public final String getId() {
         return id;
     }
 
+    /**
+     * @param filename the path of a file, relative to the local folder of the torrent
+     * @return the index of the file in this torrent, or -1 if it is not in the torrent
+     */
+    public int indexOf(String filename) {
+        Integer index = indices.get(filename);
+        return index == null ? -1 : index;
+    }
+
+    private int fileIndex(String filename) {
+        Integer index = indices.get(filename);
+        if (index == null)
+            throw new NullPointerException("file " + filename + " not in torrent " + id);
+        return index;
+    }
+
+    public String getFilename(int file) {
+        return meta.getFilename(file);
+    }
+
     /**
      * Returns a {@link LinkedHashMap} of filename to number of pieces.
      *
      * @return a map (filename to number of owners)
      */
     public LinkedHashMap<String, Integer> getFilesData() {
-        Set<File> files = filePieces.keySet();
-        LinkedHashMap<String, Integer> fileData = new LinkedHashMap<>(files.size());
-        for (File f : files)
-            fileData.put(getPathRelativeTo(f, localFolder), filePieces.get(f).size());
+        LinkedHashMap<String, Integer> fileData = new LinkedHashMap<>(meta.getNumberOfFiles());
+        for (int i = 0; i < meta.getNumberOfFiles(); i++)
+            fileData.put(meta.getFilename(i), filePieces[i].getNumberOfPieces());
 
         return fileData;
     }
 
     public String[] getFilenames() {
-        String[] filenames = new String[filePieces.size()];
-        Set<File> files = filePieces.keySet();
-        int i = 0;
-        for (File file : files) {
-            filenames[i] = getPathRelativeTo(file, localFolder);
-            i++;
-        }
+        String[] filenames = new String[meta.getNumberOfFiles()];
+        for (int i = 0; i < filenames.length; i++)
+            filenames[i] = meta.getFilename(i);
         return filenames;
     }
 
@@ -82,252 +131,496 @@ public class Torrent implements Runnable {
         return asker;
     }
 
+    public boolean doIOwn(int file, int pieceID) {
+        return filePieces[file].owns(pieceID, PeerTable.me());
+    }
+
     public boolean doIOwn(String filename, int pieceID) {
-        File f = new File(localFolder.getAbsolutePath() + FILEPATH_SEPARATOR + filename);
-        Set<InetAddress> owners = filePieces.get(f).get(pieceID);
-        return owners.contains(me);
+        int file = indexOf(filename);
+        return file != -1 && doIOwn(file, pieceID);
+    }
+
+    public void addOwner(int file, int pieceID, InetAddress owner) {
+        filePieces[file].add(pieceID, PeerTable.intern(owner));
     }
 
     public void addOwner(String filename, int pieceID, InetAddress owner) {
-        File f = new File(localFolder.getAbsolutePath() + FILEPATH_SEPARATOR + filename);
-        Set<InetAddress> owners = filePieces.get(f).get(pieceID);
-        owners.add(owner);
+        int file = indexOf(filename);
+        if (file != -1) addOwner(file, pieceID, owner);
+    }
+
+    /**
+     * Forgets every piece of this torrent owned by the given peer.
+     *
+     * @param owner the peer to forget
+     */
+    public void removeOwner(InetAddress owner) {
+        int peer = PeerTable.indexOf(owner);
+        if (peer == -1) return;
+        for (PieceOwnership pieces : filePieces)
+            pieces.remove(peer);
     }
 
     public RandomAccessFile openTorrent() throws FileNotFoundException {
         return new RandomAccessFile(torrentFile, "r");
     }
 
-    public BufferedReader getReader() throws FileNotFoundException {
-        return new BufferedReader(new FileReader(this.torrentFile));
+    /** @return true if the pieces of the torrent are proven by the Merkle trees of their files */
+    public boolean isMerkle() {
+        return meta.isMerkle();
     }
 
-    public long getFileSize(String filename) throws IOException {
-        BufferedReader reader = new BufferedReader(new FileReader(torrentFile));
-        reader.readLine();  // torrentID
-        reader.readLine();  // total size
-        reader.readLine();  // local path
-        long fileSize;
-        String filePath;
-        do {
-            fileSize = Long.parseLong(reader.readLine());
-            filePath = reader.readLine();
+    public long getFileSize(int file) {
+        return meta.getFileSize(file);
+    }
 
-            if (filePath.equals(filename))
-                return fileSize;
-            else skipHashesAndGetPieces(fileSize, reader);
-        } while (reader.ready());
+    /** @return the size of the file, or -1 if it is not in the torrent */
+    public long getFileSize(String filename) {
+        int file = indexOf(filename);
+        return file == -1 ? -1 : meta.getFileSize(file);
+    }
 
-        return -1;
+    /**
+     * @param file the file to get pieces of
+     * @param max  the most pieces to return
+     * @return up to max pieces that this node is missing and that someone owns, rarest first
+     */
+    public int[] getRarestMissing(int file, int max) {
+        return filePieces[file].rarestMissing(max);
     }
 
-    public int[] getPiecesByRarity(String filename) {
-        File f = new File(localFolder.getAbsolutePath() + FILEPATH_SEPARATOR + filename);
-        ArrayList<LinkedHashSet<InetAddress>> piecesOwners = filePieces.get(f);
-        return PairMergeSorter.mergeSort(piecesOwners);
+    public int[] getRarestMissing(String filename, int max) {
+        return getRarestMissing(fileIndex(filename), max);
     }
 
     public void forEachFile(Consumer<String> action) {
         if (action == null) throw new NullPointerException();
-        Set<File> files = filePieces.keySet();
-        for (File file : files)
-            action.accept(getPathRelativeTo(file, localFolder));
+        for (int i = 0; i < meta.getNumberOfFiles(); i++)
+            action.accept(meta.getFilename(i));
     }
 
-    private File getFileOf(String filename) {
-        File file = new File(localFolder.getAbsolutePath() + FILEPATH_SEPARATOR + filename);
-        if (!filePieces.containsKey(file))
-            throw new NullPointerException("file " + file.getAbsolutePath() + " not in torrent");
-        return file;
+    private File[] resolveFiles() {
+        File[] resolved = new File[meta.getNumberOfFiles()];
+        String folder = localFolder.getAbsolutePath() + FILEPATH_SEPARATOR;
+        for (int i = 0; i < meta.getNumberOfFiles(); i++)
+            resolved[i] = new File(folder + meta.getFilename(i));
+        return resolved;
     }
 
-    public synchronized byte[] getFilePiece(String filename, int pieceID) {
-        if (!fReaders.containsKey(filename))
+    /**
+     * Opens the file if it is not open yet, without locking. Threads that race to open it keep the first one opened.
+     *
+     * @return the open file, or null if it cannot be opened or the torrent was stopped
+     */
+    private BufferedRandomFile getBufferedFile(int file) {
+        while (true) {
+            BufferedRandomFile reader = fReaders.get(file);
+            if (reader != null) return reader;
+            if (stopped) return null;
             try {
-                fReaders.put(filename, new BufferedRandomFile(getFileOf(filename), fileSizes.get(filename)));
+                reader = new BufferedRandomFile(files[file], meta.getFileSize(file));
             }
             catch (Exception e) {
                 log(e);
+                return null;
             }
-        return fReaders.get(filename).getPiece(pieceID);
+            if (!fReaders.compareAndSet(file, null, reader)) {
+                reader.writeAndClose();  // Another thread opened it first.
+                continue;
+            }
+            if (!stopped) return reader;
+            if (fReaders.compareAndSet(file, reader, null)) reader.writeAndClose();  // Stopped meanwhile.
+            return null;
+        }
     }
 
-    public void setFilePiece(String filename, Integer pieceID, byte[] pieceData) {
-        if (!fReaders.containsKey(filename))
+    /**
+     * Reads a piece without locking, so that uploads neither wait for each other nor for downloads.
+     * A file closed meanwhile is opened again.
+     *
+     * @return the contents of the piece, or null if they could not be read
+     */
+    public byte[] getFilePiece(int file, int pieceID) {
+        Scrubber.uploadRead();
+        while (true) {
+            BufferedRandomFile reader = getBufferedFile(file);
+            if (reader == null) return null;
             try {
-                fReaders.put(filename, new BufferedRandomFile(getFileOf(filename), fileSizes.get(filename)));
+                return reader.getPiece(pieceID);
             }
-            catch (Exception e) {
-                log(e);
+            catch (ClosedChannelException e) {
+                fReaders.compareAndSet(file, reader, null);
             }
+        }
+    }
 
-        fReaders.get(filename).setPiece(pieceID, pieceData);
+    public byte[] getFilePiece(String filename, int pieceID) {
+        return getFilePiece(fileIndex(filename), pieceID);
     }
 
-    public void writeAndCloseFile(String filename) {
-        BufferedRandomFile reader = fReaders.get(filename);
-        if (reader == null) return;
-        reader.writeAndClose();
+    /**
+     * @param file    the file that contains the piece
+     * @param pieceID the piece to check
+     * @param data    the received contents of the piece
+     * @return true if the data hashes to the piece's hash in the torrent
+     */
+    public boolean check(int file, int pieceID, ByteBuffer data, byte[][] proof) {
+        if (!HashChecker.isCorrect(meta, file, pieceID, data, proof)) return false;
+        if (meta.isMerkle())
+            synchronized (this) {
+                if (trees[file] == null) proofs.put(((long) file << 32) | pieceID, proof);
+            }
+        return true;
     }
 
-    public RandomAccessFile openFileW(String filename) {
-        if (!rafs.containsKey(filename)) {
-            File file = getFileOf(filename);
+    /** {@link HashChecker#corruptBlocks(TorrentMeta, int, int, ByteBuffer, byte[], byte[][])} */
+    public long corruptBlocks(int file, int pieceID, ByteBuffer data, byte[] leaves, byte[][] proof) {
+        return HashChecker.corruptBlocks(meta, file, pieceID, data, leaves, proof);
+    }
+
+    /**
+     * @param data the contents of a piece
+     * @return the digests of the blocks of the piece, the leaves of its run in the Merkle tree
+     */
+    public byte[][] hashBlocks(byte[] data) {
+        int length = meta.getAlgorithm().getLength();
+        byte[] leaves = MerkleTree.hashBlocks(meta.getAlgorithm(), ByteBuffer.wrap(data));
+        byte[][] digests = new byte[leaves.length / length][];
+        for (int i = 0; i < digests.length; i++)
+            digests[i] = Arrays.copyOfRange(leaves, i * length, (i + 1) * length);
+        return digests;
+    }
+
+    /**
+     * Pieces of Merkle torrents are proven with the tree of the local file, if it is built,
+     * or else with the proof they were received with.
+     * Trees are never built here, so that serving a piece never waits for a whole file to be read.
+     *
+     * @param file    the file that contains the piece
+     * @param pieceID the piece to prove
+     * @return the proof to send with the piece, empty if the torrent is not in Merkle mode,
+     * or null if the piece cannot be proven
+     */
+    public byte[][] getProof(int file, int pieceID) {
+        if (!meta.isMerkle()) return MerkleTree.NO_PROOF;
+        return storedProof(file, pieceID);
+    }
+
+    /**
+     * Builds the tree of a complete Merkle file in the background, unless it is already built.
+     * The proofs the pieces came with keep serving them meanwhile, and the file is read without the lock.
+     */
+    private void buildTree(int file) {
+        synchronized (this) {
+            if (!meta.isMerkle() || trees[file] != null || !filePieces[file].ownsAll(PeerTable.me())) return;
+        }
+        HashService.background(() -> {
             try {
-                if (!file.exists()) {
-                    file.getParentFile().mkdirs();
-                    file.createNewFile();
-                }
-                rafs.put(filename, new RandomAccessFile(getFileOf(filename), "rw"));
+                MerkleTree tree = MerkleTree.build(meta.getAlgorithm(), files[file], meta.getFileSize(file));
+                if (Arrays.equals(tree.getRoot(), meta.getRoot(file))) setTree(file, tree);
+                else print("The tree of " + meta.getFilename(file) + " in torrent " + id + " does not match its root.");
             }
             catch (IOException e) {
                 log(e);
             }
+        });
+    }
+
+    /** Keeps the tree of a complete file, which proves all its pieces, instead of the proofs they came with. */
+    private synchronized void setTree(int file, MerkleTree tree) {
+        trees[file] = tree;
+        proofs.keySet().removeIf(key -> (int) (key >>> 32) == file);
+    }
+
+    /** Reads the blocks the proof needs below the levels the tree keeps, so it is never called with the lock held. */
+    private byte[][] proof(MerkleTree tree, int file, int pieceID) throws IOException {
+        int first = MerkleTree.getFirstLeaf(pieceID);
+        int leaves = MerkleTree.getNumberOfLeaves(meta.getPieceLength(file, pieceID));
+        return tree.proof(files[file], first, first + leaves);
+    }
+
+    /** @return the proof of the piece from what is already known, without building a tree, or null */
+    private byte[][] storedProof(int file, int pieceID) {
+        MerkleTree tree;
+        synchronized (this) {
+            tree = trees[file];
+            if (tree == null) return proofs.get(((long) file << 32) | pieceID);
+        }
+        try {
+            return proof(tree, file, pieceID);
+        }
+        catch (IOException e) {
+            log(e);
+            return null;
         }
-        return rafs.get(filename);
     }
 
-    public ArrayList<LinkedHashSet<InetAddress>> getSetsOfOwners(String filename) {
-        File file = new File(localFolder.getAbsolutePath() + FILEPATH_SEPARATOR + filename);
-        return filePieces.get(file);
+    /**
+     * @return true if the file on disk holds every piece this host owns of it, so it is not being downloaded.
+     * A file open only to upload its pieces is.
+     */
+    private boolean isComplete(int file) {
+        BufferedRandomFile reader = fReaders.get(file);
+        return files[file].exists() && (reader == null || !reader.hasWrites());
     }
 
-    public int getNumberOfFiles() {
-        return filePieces.size();
+    /**
+     * Verifies owned pieces again from disk, carrying on from where the last call stopped and wrapping around.
+     * Files with pieces that may not be on disk yet are skipped.
+     *
+     * @param budget the most bytes to read
+     * @return the bytes read
+     */
+    long scrub(long budget) {
+        int me = PeerTable.me();
+        int n = meta.getNumberOfFiles();
+        if (me == -1 || n == 0) return 0;
+        if (scrubBuffer == null) scrubBuffer = ByteBuffer.allocate(PIECE_SIZE);
+
+        long read = 0;
+        for (int filesPassed = 0; filesPassed <= n && read < budget; ) {
+            int file = scrubFile;
+            if (scrubPiece >= meta.getNumberOfPieces(file) || !isComplete(file)) {
+                scrubFile = (file + 1) % n;
+                scrubPiece = 0;
+                filesPassed++;
+                continue;
+            }
+            int piece = scrubPiece++;
+            if (!filePieces[file].owns(piece, me)) continue;
+            read += meta.getPieceLength(file, piece);
+            scrubPiece(file, piece);
+        }
+        return read;
     }
 
-    private File getLocalFolder() {
-        return localFolder;
+    private void scrubPiece(int file, int piece) {
+        byte[][] proof = meta.isMerkle() ? storedProof(file, piece) : MerkleTree.NO_PROOF;
+        if (proof == null) return;  // Cannot be verified without reading the whole file.
+
+        ByteBuffer data = scrubBuffer;
+        data.clear().limit(meta.getPieceLength(file, piece));
+        try (FileChannel channel = FileChannel.open(files[file].toPath(), StandardOpenOption.READ)) {
+            long position = (long) piece * PIECE_SIZE;
+            while (data.hasRemaining())
+                if (channel.read(data, position + data.position()) <= 0) break;
+        }
+        catch (IOException e) {
+            log(e);
+            return;
+        }
+        data.flip();
+        if (HashChecker.isCorrect(meta, file, piece, data, proof)) return;
+
+        print("Piece " + piece + " of " + meta.getFilename(file) + " in torrent " + id + " is damaged, withdrawn.");
+        withdraw(file, piece);
     }
 
-    public void setLocalFolder(String directory) {
-        this.localFolder = new File(directory);
-        File temp = new File(torrentFile.getAbsolutePath() + ".tmp");
-        BufferedWriter writer;
-        BufferedReader reader;
+    /** Stops owning a piece whose local data is damaged, so it is no longer announced or uploaded. */
+    private synchronized void withdraw(int file, int piece) {
+        if (filePieces[file].remove(piece, PeerTable.me())) saveResume();
+    }
+
+    /** Writes a verified piece, after which this node owns it. */
+    public synchronized void setFilePiece(int file, int pieceID, ByteBuffer pieceData) {
+        BufferedRandomFile writer = getBufferedFile(file);
+        if (writer == null) return;
+        writer.setPiece(pieceID, pieceData);
+        filePieces[file].add(pieceID, PeerTable.me());
+    }
+
+    public void setFilePiece(String filename, int pieceID, ByteBuffer pieceData) {
+        setFilePiece(fileIndex(filename), pieceID, pieceData);
+    }
+
+    /**
+     * Writes the buffered pieces of the file, closes it and saves the resume state with them.
+     * The tree of a Merkle file that is now complete is built in the background.
+     */
+    public synchronized void writeAndCloseFile(int file) {
+        BufferedRandomFile reader = fReaders.getAndSet(file, null);
+        if (reader == null) return;
+        reader.writeAndClose();
+        saveResume();
+        buildTree(file);
+    }
+
+    public void writeAndCloseFile(String filename) {
+        writeAndCloseFile(fileIndex(filename));
+    }
+
+    public synchronized RandomAccessFile openFileW(int file) {
+        if (rafs[file] != null || stopped) return rafs[file];
+        File f = files[file];
         try {
-            reader = new BufferedReader(new FileReader(torrentFile));
-            writer = new BufferedWriter(new FileWriter(temp));
-            writer.write(reader.readLine() + NEW_LINE);  // ID
-            writer.write(reader.readLine() + NEW_LINE);  // size
-            reader.readLine(); // skip current path
-            writer.write(localFolder.getAbsolutePath() + NEW_LINE);
-            while (reader.ready())
-                writer.write(reader.readLine() + NEW_LINE);
-            writer.close();
-            reader.close();
+            if (!f.exists()) {
+                f.getParentFile().mkdirs();
+                f.createNewFile();
+            }
+            rafs[file] = new RandomAccessFile(f, "rw");
         }
         catch (IOException e) {
             log(e);
-            return;
         }
+        return rafs[file];
+    }
 
-        torrentFile.delete();
-        temp.renameTo(torrentFile);
-        // the torrentFile instance now points to the one created by temp
+    public RandomAccessFile openFileW(String filename) {
+        return openFileW(fileIndex(filename));
+    }
+
+    /**
+     * @param file    the file that contains the piece
+     * @param pieceID the piece to get the owners of
+     * @return the peers other than this node that own the piece, or null if there are none
+     */
+    public PeerList getOwners(int file, int pieceID) {
+        return filePieces[file].getOwners(pieceID);
+    }
+
+    public PeerList getOwners(String filename, int pieceID) {
+        return getOwners(fileIndex(filename), pieceID);
+    }
 
+    /**
+     * @param filename the file to count owners in
+     * @return the number of owners of each piece of the file
+     */
+    public int[] getOwnerCounts(String filename) {
+        return filePieces[fileIndex(filename)].countOwners();
     }
 
-    private int skipHashesAndGetPieces(long fileSize, BufferedReader reader) throws IOException {
-        int pieces = (int) getNumberOfPieces(fileSize);
-        long skipped = reader.skip(pieces * HASH_LINE_LENGTH);
-        return pieces;
+    public int getNumberOfFiles() {
+        return meta.getNumberOfFiles();
     }
 
-    private void createFileEntry(String filePath, int pieces) {
-        ArrayList<LinkedHashSet<InetAddress>> piecesOwners = new ArrayList<>(pieces);
-        for (int i = 0; i < pieces; i++)
-            piecesOwners.add(new LinkedHashSet<>());
-        File f = new File(localFolder.getAbsolutePath() + FILEPATH_SEPARATOR + filePath);
-        filePieces.put(f, piecesOwners);
+    /** Copies the text torrent to the given file, with the local folder line replaced. */
+    private void rewriteTextLocalFolder(File temp) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(torrentFile));
+             BufferedWriter writer = new BufferedWriter(new FileWriter(temp))) {
+            writer.write(reader.readLine() + NEW_LINE);  // ID
+            writer.write(reader.readLine() + NEW_LINE);  // size
+            reader.readLine(); // skip current path
+            writer.write(localFolder.getAbsolutePath() + NEW_LINE);
+            while (reader.ready())
+                writer.write(reader.readLine() + NEW_LINE);
+        }
     }
 
-    private void initialiseFileEntries() {
-        long fileSize;
-        String filePath;
-        int pieces;
+    public void setLocalFolder(String directory) {
+        this.localFolder = new File(directory);
+        File temp = new File(torrentFile.getAbsolutePath() + ".tmp");
         try {
-            do {
-                String fileSizeStr = reader.readLine();
-                fileSize = Long.parseLong(fileSizeStr);
-                filePath = reader.readLine();
-                fileSizes.put(filePath, fileSize);
-                pieces = skipHashesAndGetPieces(fileSize, reader);
-                createFileEntry(filePath, pieces);
-            } while (reader.ready());
+            if (TorrentMeta.isBinary(torrentFile))
+                meta.writeBinary(temp, localFolder.getAbsolutePath());
+            else
+                rewriteTextLocalFolder(temp);
+            // The torrent file is always either the old version or the new one.
+            Files.move(temp.toPath(), torrentFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
         }
         catch (IOException e) {
             log(e);
+            temp.delete();
+            return;
         }
+
+        // the torrentFile instance now points to the one created by temp
+        files = resolveFiles();
     }
 
     /**
-     * Starts FileHashChecker threads to determine which file pieces are present on this host.
+     * Starts FileHashCheckers to determine which file pieces are present on this host.
+     * Files that did not change since they were last verified are not checked again,
+     * their pieces are taken from the resume state instead.
      *
-     * @return a {@link LinkedList} of the created threads.
+     * @param resume the saved resume state of the torrent
+     * @return a {@link LinkedList} of the started checkers.
      */
-    private LinkedList<FileHashChecker> runCheckers() {
+    private LinkedList<FileHashChecker> runCheckers(ResumeData resume) {
         if (!localFolder.exists()) return null;
         LinkedList<FileHashChecker> checkers = new LinkedList<>();
-        Set<File> files = filePieces.keySet();
-        for (File f : files) {
-            if (!f.exists()) continue;
+        for (int i = 0; i < meta.getNumberOfFiles(); i++) {
+            if (!files[i].exists()) continue;
+            long[] verified = resume.getVerified(meta.getFilename(i), files[i], meta.getNumberOfPieces(i));
+            if (verified != null) {
+                announce(i, verified);
+                continue;
+            }
             FileHashChecker checker;
             try {
-                checker = new FileHashChecker(torrentFile, getPathRelativeTo(f, localFolder));
+                checker = new FileHashChecker(meta, i, files[i]);
                 checker.start();
                 checkers.addLast(checker);
             }
             catch (FileNotFoundException e) {
                 // The file is not present here.
             }
-            catch (IOException e) {
-                log(e);
-            }
         }
         return checkers;
     }
 
-    private boolean atLeastOneRunning(LinkedList<FileHashChecker> checkers) {
-        for (FileHashChecker checker : checkers)
-            if (checker.getState().equals(Thread.State.RUNNABLE))
-                return true;
+    private void announce(int file, int piece) {
+        Message message = new Message(I_HAVE, id, meta.getFilename(file), piece);
+        multicastMessage(message);
+        filePieces[file].add(piece, PeerTable.me());
+    }
 
-        return false;
+    /** Announces every piece set in the bitmap. */
+    private void announce(int file, long[] pieces) {
+        for (int w = 0; w < pieces.length; w++)
+            for (long word = pieces[w]; word != 0; word &= word - 1)
+                announce(file, (w << 6) + Long.numberOfTrailingZeros(word));
     }
 
     private void fillCheckersResults(LinkedList<FileHashChecker> checkers) {
         for (FileHashChecker checker : checkers) {
+            int file = fileIndex(checker.getInputFileName());
+            for (Integer pieceOwned : checker.getPiecesOwned())
+                announce(file, pieceOwned);
+            if (checker.getTree() != null) setTree(file, checker.getTree());
+        }
+    }
+
+    /**
+     * Saves which pieces of the local files this host owns,
+     * so that the next start can skip hashing the files that have not changed.
+     */
+    public synchronized void saveResume() {
+        int me = PeerTable.me();
+        if (me == -1) return;
+        ResumeData resume = new ResumeData(localFolder.getAbsolutePath());
+        for (int i = 0; i < meta.getNumberOfFiles(); i++)
+            if (isComplete(i))  // Files being written are checked again.
+                resume.put(meta.getFilename(i), files[i], meta.getNumberOfPieces(i), filePieces[i].getPieces(me));
+        resume.save(torrentFile);
+    }
+
+    /** Stops asking for owners and closes the open files, when the torrent is replaced by a new version. */
+    public synchronized void stop() {
+        stopped = true;
+        asker.stop();
+        for (int i = 0; i < meta.getNumberOfFiles(); i++) {
+            BufferedRandomFile reader = fReaders.getAndSet(i, null);
+            if (reader != null) reader.writeAndClose();
+            if (rafs[i] == null) continue;
             try {
-                checker.join();
+                rafs[i].close();
             }
-            catch (InterruptedException e) {
+            catch (IOException e) {
                 log(e);
             }
-            LinkedHashSet<Integer> piecesOwned = checker.getPiecesOwned();
-            File checkerFile = new File(localFolder.getAbsolutePath() + FILEPATH_SEPARATOR + checker.getInputFileName());
-            ArrayList<LinkedHashSet<InetAddress>> owners = filePieces.get(checkerFile);
-            for (Integer pieceOwned : piecesOwned) {
-                LinkedHashSet<InetAddress> ownersOfPiece = owners.get(pieceOwned);
-                Message message = new Message(I_HAVE, id, checker.getInputFileName(), pieceOwned);
-                multicastMessage(message);
-                ownersOfPiece.add(me);
-            }
+            rafs[i] = null;
         }
     }
 
     @Override
     public void run() {
-        initialiseFileEntries();
-        LinkedList<FileHashChecker> checkers = runCheckers();
+        LinkedList<FileHashChecker> checkers = runCheckers(ResumeData.load(torrentFile, localFolder.getAbsolutePath()));
         if (checkers == null) return;
-        while (atLeastOneRunning(checkers)) try {
-            Thread.sleep(100);
-        }
-        catch (InterruptedException e) {
-            log(e);
-        }
         fillCheckersResults(checkers);
+        for (int i = 0; i < meta.getNumberOfFiles(); i++)
+            buildTree(i);  // Files taken from the resume state were not hashed.
+        saveResume();
         asker.start();
     }
 
@@ -343,26 +636,32 @@ public class Torrent implements Runnable {
         StringBuilder sb = new StringBuilder();
         sb.append(id).append(NEW_LINE);
         sb.append(torrentFile.length()).append(NEW_LINE);
-        sb.append(filePieces.size()).append(NEW_LINE);
-        Set<File> files = filePieces.keySet();
-        for (File file : files)
-            sb.append(getPathRelativeTo(file, localFolder)).append(NEW_LINE);
+        sb.append(meta.getNumberOfFiles()).append(NEW_LINE);
+        for (int i = 0; i < meta.getNumberOfFiles(); i++)
+            sb.append(meta.getFilename(i)).append(NEW_LINE);
         return sb.toString();
     }
 
     public void printFilePiecesOwners() {
-        filePieces.forEach((file, owners) -> {
-            print(getPathRelativeTo(file, this.getLocalFolder()), owners);
-        });
+        for (int file = 0; file < meta.getNumberOfFiles(); file++) {
+            PieceOwnership owners = filePieces[file];
+            List<List<InetAddress>> piecesOwners = new ArrayList<>(owners.getNumberOfPieces());
+            for (int i = 0; i < owners.getNumberOfPieces(); i++) {
+                List<InetAddress> pieceOwners = new ArrayList<>();
+                for (int peer : owners.ownersOf(i))
+                    pieceOwners.add(PeerTable.get(peer));
+                piecesOwners.add(pieceOwners);
+            }
+            print(meta.getFilename(file), piecesOwners);
+        }
     }
 
     public void ask(InetAddress owner, int port) {
-        filePieces.forEach((file, listOfSets) -> {
-            for(LinkedHashSet<InetAddress> set : listOfSets)
-                if (!set.contains(owner)) {  // If at least one set does not contain the owner, ask him.
-                    new FileOwnerAsker(this, owner, port).start();
-                    return;
-                }
-        });
+        int peer = PeerTable.intern(owner);
+        for (PieceOwnership owners : filePieces)
+            if (!owners.ownsAll(peer)) {  // If the owner lacks at least one piece, ask him.
+                new FileOwnerAsker(this, owner, port).start();
+                return;
+            }
     }
 }
@@ -0,0 +1,338 @@
+package fileman.torrent;
+
+import fileman.hash.DigestAlgorithm;
+import fileman.hash.HashService;
+import fileman.hash.MerkleTree;
+import util.CommonlyUsed;
+
+import java.io.*;
+import java.util.ArrayList;
+
+import static util.CommonlyUsed.PIECE_SIZE;
+
+/**
+ * The contents of a torrent file, parsed once.
+ * The hashes of all the pieces of all the files are kept back to back in one array,
+ * so the expected hash of a piece is found with an offset instead of by reading the torrent file.
+ * <p>
+ * Two formats are read. The text format has the id, total size and local folder on a line each,
+ * followed by the size, path and hexadecimal piece hashes of every file, again a line each.
+ * The binary format (version 2) starts with a header:
+ * magic, version, piece size, digest length, id, total size and local folder.
+ * A file table with the path, size and digest offset of every file follows,
+ * and then the raw digests of all the pieces, the offsets being relative to the first of them.
+ * A file's hashes are therefore one seek away once the header is read.
+ * <p>
+ * Version 3 adds a hash mode to the header, after the digest length.
+ * In Merkle mode the digest section holds one {@link MerkleTree} root per file instead of a digest per piece,
+ * and pieces are verified with the proofs that come with them.
+ * Version 4 adds the id of the {@link DigestAlgorithm} after the hash mode.
+ * Older binary torrents and all text torrents use SHA-1.
+ * Version 5 adds the modification time of every file to the file table, after its size,
+ * so that regenerating the torrent can keep the hashes of files that did not change.
+ * Torrents whose pieces or digests do not fit in an int are rejected when read,
+ * so offsets into the digests never overflow.
+ *
+ * @version 2.4
+ */
+public class TorrentMeta {
+
+    private static final int MAGIC = 0x46445432;  // "FDT2"
+    private static final int VERSION = 5;
+    private static final int FLAT = 0, MERKLE = 1;
+    /** The most bytes of digests a torrent may hold, the size of the largest array. */
+    private static final long MAX_DIGEST_BYTES = Integer.MAX_VALUE - 8;
+
+    private final String id;
+    private final long totalSize;
+    private final String localFolder;
+    private final String[] filenames;
+    private final long[] fileSizes;
+    /** The modification time of every file when it was hashed, or 0 if the torrent does not record it. */
+    private final long[] modified;
+    /** The index of the first piece of every file among all the pieces, and the total number of pieces at the end. */
+    private final int[] firstPiece;
+    private final boolean merkle;
+    private final DigestAlgorithm algorithm;
+    private final int digestLength;
+    /** The piece hashes, or the roots of the files in Merkle mode. */
+    private final byte[] hashes;
+
+    private TorrentMeta(String id, long totalSize, String localFolder, String[] filenames, long[] fileSizes,
+                        long[] modified, int[] firstPiece, boolean merkle, DigestAlgorithm algorithm, byte[] hashes) {
+        this.id = id;
+        this.totalSize = totalSize;
+        this.localFolder = localFolder;
+        this.filenames = filenames;
+        this.fileSizes = fileSizes;
+        this.modified = modified;
+        this.firstPiece = firstPiece;
+        this.merkle = merkle;
+        this.algorithm = algorithm;
+        this.digestLength = algorithm.getLength();
+        this.hashes = hashes;
+    }
+
+    /** @return the number of digests the torrent keeps for the file */
+    private static long getNumberOfHashes(long fileSize, boolean merkle) {
+        return merkle ? 1 : CommonlyUsed.getNumberOfPieces(fileSize);
+    }
+
+    /**
+     * @param first    the index of the first piece of a file among the pieces of all the files
+     * @param fileSize the size of the file
+     * @return the index of the first piece of the next file
+     * @throws IOException if the size is negative or the pieces do not fit in an int
+     */
+    private static int firstPieceAfter(int first, long fileSize, File torrentFile) throws IOException {
+        if (fileSize < 0) throw new IOException("negative file size in " + torrentFile);
+        long next = first + CommonlyUsed.getNumberOfPieces(fileSize);
+        if (next > Integer.MAX_VALUE) throw new IOException("too many pieces in " + torrentFile);
+        return (int) next;
+    }
+
+    /**
+     * Parses a torrent file in either format.
+     * Text torrents made by older versions have an extra hash after files whose size is a multiple of the piece size.
+     * It is skipped.
+     *
+     * @param torrentFile the torrent to read
+     * @return the parsed torrent
+     * @throws IOException if the torrent cannot be read or is malformed
+     */
+    public static TorrentMeta read(File torrentFile) throws IOException {
+        return isBinary(torrentFile) ? readBinary(torrentFile) : readText(torrentFile);
+    }
+
+    /** @return true if the torrent is in the binary format */
+    public static boolean isBinary(File torrentFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new FileInputStream(torrentFile))) {
+            return in.readInt() == MAGIC;
+        }
+        catch (EOFException e) {
+            return false;
+        }
+    }
+
+    private static TorrentMeta readBinary(File torrentFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(torrentFile)))) {
+            in.readInt();  // magic
+            int version = in.readUnsignedByte();
+            if (version < 2 || version > VERSION) throw new IOException("unsupported torrent version " + version);
+            int pieceSize = in.readInt();
+            if (pieceSize != PIECE_SIZE) throw new IOException("unsupported piece size " + pieceSize);
+            int digestLength = in.readUnsignedByte();
+            int mode = version >= 3 ? in.readUnsignedByte() : FLAT;
+            if (mode != FLAT && mode != MERKLE) throw new IOException("unsupported hash mode " + mode);
+            boolean merkle = mode == MERKLE;
+            int algorithmId = version >= 4 ? in.readUnsignedByte() : DigestAlgorithm.SHA1.getId();
+            DigestAlgorithm algorithm = DigestAlgorithm.fromId(algorithmId);
+            if (algorithm == null) throw new IOException("unsupported digest algorithm " + algorithmId);
+            if (digestLength != algorithm.getLength()) throw new IOException("unsupported digest length");
+            String id = in.readUTF();
+            long totalSize = in.readLong();
+            String localFolder = in.readUTF();
+
+            int n = in.readInt();
+            String[] filenames = new String[n];
+            long[] fileSizes = new long[n];
+            long[] modified = new long[n];
+            int[] firstPiece = new int[n + 1];
+            long expectedOffset = 0;
+            for (int i = 0; i < n; i++) {
+                filenames[i] = in.readUTF();
+                fileSizes[i] = in.readLong();
+                if (merkle && fileSizes[i] > MerkleTree.MAX_FILE_SIZE)
+                    throw new IOException("file too large for a Merkle tree in " + torrentFile);
+                if (version >= 5) modified[i] = in.readLong();
+                if (in.readLong() != expectedOffset)
+                    throw new IOException("malformed file table in " + torrentFile);
+                firstPiece[i + 1] = firstPieceAfter(firstPiece[i], fileSizes[i], torrentFile);
+                expectedOffset += getNumberOfHashes(fileSizes[i], merkle) * digestLength;
+                if (expectedOffset > MAX_DIGEST_BYTES) throw new IOException("too many digests in " + torrentFile);
+            }
+            byte[] hashes = new byte[(int) expectedOffset];
+            in.readFully(hashes);
+            return new TorrentMeta(id, totalSize, localFolder, filenames, fileSizes, modified, firstPiece,
+                    merkle, algorithm, hashes);
+        }
+    }
+
+    /**
+     * Writes the header and file table of a binary torrent.
+     * The caller writes the digests of all the pieces right after, in the order of the files,
+     * or the root of every file in Merkle mode.
+     */
+    public static void writeHeader(DataOutputStream out, String id, long totalSize, String localFolder,
+                                   String[] filenames, long[] fileSizes, long[] modified,
+                                   boolean merkle, DigestAlgorithm algorithm) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(VERSION);
+        out.writeInt(PIECE_SIZE);
+        out.writeByte(algorithm.getLength());
+        out.writeByte(merkle ? MERKLE : FLAT);
+        out.writeByte(algorithm.getId());
+        out.writeUTF(id);
+        out.writeLong(totalSize);
+        out.writeUTF(localFolder);
+        out.writeInt(filenames.length);
+        long offset = 0;
+        for (int i = 0; i < filenames.length; i++) {
+            out.writeUTF(filenames[i]);
+            out.writeLong(fileSizes[i]);
+            out.writeLong(modified[i]);
+            out.writeLong(offset);
+            offset += getNumberOfHashes(fileSizes[i], merkle) * algorithm.getLength();
+        }
+    }
+
+    /**
+     * Writes this torrent in the binary format, with another local folder.
+     *
+     * @param torrentFile the file to write to
+     * @param localFolder the local folder to record
+     */
+    void writeBinary(File torrentFile, String localFolder) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(torrentFile)))) {
+            writeHeader(out, id, totalSize, localFolder, filenames, fileSizes, modified, merkle, algorithm);
+            out.write(hashes);
+        }
+    }
+
+    private static TorrentMeta readText(File torrentFile) throws IOException {
+        int digestLength = DigestAlgorithm.SHA1.getLength();
+        try (BufferedReader reader = new BufferedReader(new FileReader(torrentFile))) {
+            String id = reader.readLine();
+            long totalSize = Long.parseLong(reader.readLine());
+            String localFolder = reader.readLine();
+
+            ArrayList<String> names = new ArrayList<>();
+            ArrayList<Long> sizes = new ArrayList<>();
+            ByteArrayOutputStream hashes = new ByteArrayOutputStream();
+            String line = reader.readLine();
+            while (line != null && !line.isEmpty()) {
+                long fileSize = Long.parseLong(line);
+                names.add(reader.readLine());
+                sizes.add(fileSize);
+                long pieces = CommonlyUsed.getNumberOfPieces(fileSize);
+                if (fileSize < 0 || hashes.size() + pieces * digestLength > MAX_DIGEST_BYTES)
+                    throw new IOException("too many digests in " + torrentFile);
+                for (long i = 0; i < pieces; i++) {
+                    byte[] hash = HashService.fromHex(reader.readLine(), digestLength);
+                    if (hash == null) throw new IOException("malformed hash in " + torrentFile);
+                    hashes.write(hash);
+                }
+                line = reader.readLine();
+                if (line != null && line.length() == digestLength * 2)
+                    line = reader.readLine();  // The extra hash of older torrents.
+            }
+
+            int n = names.size();
+            long[] fileSizes = new long[n];
+            int[] firstPiece = new int[n + 1];
+            for (int i = 0; i < n; i++) {
+                fileSizes[i] = sizes.get(i);
+                firstPiece[i + 1] = firstPieceAfter(firstPiece[i], fileSizes[i], torrentFile);
+            }
+            return new TorrentMeta(id, totalSize, localFolder, names.toArray(new String[n]),
+                    fileSizes, new long[n], firstPiece, false, DigestAlgorithm.SHA1, hashes.toByteArray());
+        }
+        catch (NumberFormatException e) {
+            throw new IOException("malformed torrent " + torrentFile, e);
+        }
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /** @return the local folder the torrent was created or downloaded in */
+    public String getLocalFolder() {
+        return localFolder;
+    }
+
+    public int getNumberOfFiles() {
+        return filenames.length;
+    }
+
+    public String getFilename(int file) {
+        return filenames[file];
+    }
+
+    public long getFileSize(int file) {
+        return fileSizes[file];
+    }
+
+    /** @return the modification time of the file when it was hashed, or 0 if it is not known */
+    public long getModified(int file) {
+        return modified[file];
+    }
+
+    public int getNumberOfPieces(int file) {
+        return firstPiece[file + 1] - firstPiece[file];
+    }
+
+    public DigestAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /** @return true if pieces are verified against the Merkle root of their file */
+    public boolean isMerkle() {
+        return merkle;
+    }
+
+    /** @return a copy of the Merkle root of the file */
+    public byte[] getRoot(int file) {
+        byte[] root = new byte[digestLength];
+        System.arraycopy(hashes, file * digestLength, root, 0, digestLength);
+        return root;
+    }
+
+    /** @return the length of the piece, shorter than a full piece only at the end of the file */
+    public int getPieceLength(int file, int piece) {
+        return (int) Math.min(PIECE_SIZE, fileSizes[file] - (long) piece * PIECE_SIZE);
+    }
+
+    /**
+     * @return copies of the digests the torrent keeps for the file:
+     * the hash of every piece, or just the root in Merkle mode
+     */
+    public byte[][] getHashes(int file) {
+        int first = merkle ? file : firstPiece[file];
+        byte[][] fileHashes = new byte[merkle ? 1 : getNumberOfPieces(file)][digestLength];
+        for (int i = 0; i < fileHashes.length; i++)
+            System.arraycopy(hashes, offsetOf(first + i), fileHashes[i], 0, digestLength);
+        return fileHashes;
+    }
+
+    /** @return the offset of the digest with the given index, within an int as torrents are bounded when read */
+    private int offsetOf(long digest) {
+        return Math.toIntExact(digest * digestLength);
+    }
+
+    /** @return a copy of the expected hash of the piece */
+    public byte[] getHash(int file, int piece) {
+        byte[] hash = new byte[digestLength];
+        System.arraycopy(hashes, offsetOf((long) firstPiece[file] + piece), hash, 0, digestLength);
+        return hash;
+    }
+
+    /**
+     * @param file   the index of the file
+     * @param piece  the index of the piece in the file
+     * @param digest the calculated digest of the piece
+     * @return true if the digest is the expected one
+     */
+    public boolean matches(int file, int piece, byte[] digest) {
+        if (merkle || piece < 0 || piece >= getNumberOfPieces(file) || digest.length != digestLength) return false;
+        int offset = offsetOf((long) firstPiece[file] + piece);
+        int difference = 0;
+        for (int i = 0; i < digestLength; i++)
+            difference |= hashes[offset + i] ^ digest[i];
+        return difference == 0;
+    }
+}
@@ -6,6 +6,7 @@ public class CommonlyUsed {
 
     public static final String NEW_LINE = "\n";
     public static final int PIECE_SIZE = 60 * 1024;  // 60 KB
+    public static final int BLOCK_SIZE = 1024;  // 1 KB, the leaves of Merkle trees and the blocks pieces are sent in
 
     /* print wrapper */
     public static void print(Object... objects) {
@@ -0,0 +1,130 @@
+package util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static util.CommonlyUsed.print;
+import static util.Logger.log;
+
+/**
+ * Runs the tasks of handlers, downloaders and uploaders.
+ * The mode is selected at startup with -Dfds.threads=platform|virtual.
+ * Platform mode reuses a pool of platform threads.
+ * Virtual mode runs every task on its own virtual thread, if the JVM supports them (Java 21+).
+ *
+ * @version 1.0
+ */
+public class Execution {
+
+    public enum Mode {PLATFORM, VIRTUAL}
+
+    private static final AtomicInteger threadCount = new AtomicInteger();
+
+    private static final Mode MODE;
+    private static final ExecutorService EXECUTOR;
+
+    static {
+        ExecutorService virtual = null;
+        if ("virtual".equalsIgnoreCase(System.getProperty("fds.threads"))) {
+            virtual = newVirtualExecutor();
+            if (virtual == null)
+                print("Virtual threads are not supported by this JVM, using platform threads.");
+        }
+        MODE = virtual == null ? Mode.PLATFORM : Mode.VIRTUAL;
+        EXECUTOR = virtual == null ? newPlatformExecutor() : virtual;
+    }
+
+    /** Looked up reflectively, so that the code still runs on JVMs without virtual threads. */
+    private static ExecutorService newVirtualExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        }
+        catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newPlatformExecutor() {
+        return Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "worker-" + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static Mode getMode() {
+        return MODE;
+    }
+
+    public static boolean isVirtual() {
+        return MODE == Mode.VIRTUAL;
+    }
+
+    /**
+     * Runs the task in the selected mode.
+     * Exceptions thrown by the task are logged.
+     *
+     * @param task the task to run
+     */
+    public static void execute(Runnable task) {
+        EXECUTOR.execute(() -> {
+            try {
+                task.run();
+            }
+            catch (Exception e) {
+                log(e);
+            }
+        });
+    }
+
+    private static long timeTasks(ExecutorService executor, int tasks, int blockFor) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(tasks);
+        long start = System.nanoTime();
+        for (int i = 0; i < tasks; i++)
+            executor.execute(() -> {
+                try {
+                    Thread.sleep(blockFor);
+                }
+                catch (InterruptedException ignored) {
+                }
+                done.countDown();
+            });
+        done.await();
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Runs the same number of blocking tasks in both modes and reports how long each took.
+     * Every task sleeps, like a handler waiting on the network or the disk.
+     *
+     * @param tasks    the number of tasks to start at once
+     * @param blockFor how long each task blocks (ms)
+     * @return a line per mode
+     */
+    public static String benchmark(int tasks, int blockFor) {
+        StringBuilder sb = new StringBuilder();
+        ExecutorService[] executors = {newPlatformExecutor(), newVirtualExecutor()};
+        for (int i = 0; i < executors.length; i++) {
+            sb.append(Mode.values()[i]).append(": ");
+            if (executors[i] == null) {
+                sb.append("not supported").append(CommonlyUsed.NEW_LINE);
+                continue;
+            }
+            try {
+                long elapsed = timeTasks(executors[i], tasks, blockFor);
+                sb.append(tasks).append(" tasks in ").append(elapsed / 1000000).append(" ms, ")
+                        .append(String.format("%.0f", tasks / (elapsed / 1e9))).append(" tasks/s");
+            }
+            catch (InterruptedException | OutOfMemoryError e) {
+                sb.append("failed: ").append(e);
+            }
+            finally {
+                executors[i].shutdown();
+            }
+            sb.append(CommonlyUsed.NEW_LINE);
+        }
+        return sb.toString();
+    }
+}
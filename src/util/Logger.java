@@ -4,7 +4,6 @@ import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 
-import static communication.interaction.SocketInitializer.isRunning;
 import static util.CommonlyUsed.NEW_LINE;
 import static util.CommonlyUsed.print;
 
@@ -16,7 +15,7 @@ public class Logger {
     private static boolean contentsUpdated = false;
 
     static {
-        new Thread(Logger::periodicFlush).start();
+        TimerWheel.every(FLUSH_PERIOD, Logger::periodicFlush);
     }
 
     public static void open(String filename) {
@@ -59,21 +58,13 @@ public class Logger {
      * In case the program crashes, there might be some log to read.
      */
     private static void periodicFlush() {
-        while (isRunning()) {
-            try {
-                Thread.sleep(FLUSH_PERIOD);
-            }
-            catch (InterruptedException ignored) {
-            }
-
-            if (!contentsUpdated) continue;
-            try {
-                writer.flush();
-            }
-            catch (IOException e) {
-                print("Could not flush log.");
-            }
-            contentsUpdated = false;
+        if (!contentsUpdated) return;
+        try {
+            writer.flush();
+        }
+        catch (IOException e) {
+            print("Could not flush log.");
         }
+        contentsUpdated = false;
     }
 }
@@ -0,0 +1,49 @@
+package util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A task that is run every period by {@link TimerWheel}, on a thread from {@link Execution}.
+ * A run is skipped if the previous one has not finished yet.
+ *
+ * @version 1.1
+ */
+public abstract class PeriodicTask implements Runnable {
+
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private volatile TimerWheel.Timeout timeout;
+
+    /**
+     * Starts running the task every period.
+     *
+     * @param period the time between runs (ms)
+     */
+    public void start(long period) {
+        timeout = TimerWheel.every(period, this::dispatch);
+    }
+
+    /** Stops running the task. A run already in progress finishes. */
+    public void stop() {
+        TimerWheel.Timeout t = timeout;
+        if (t != null) t.cancel();
+    }
+
+    /** Runs the task as soon as possible, without waiting for the period. Skipped if a run is in progress. */
+    public void runNow() {
+        dispatch();
+    }
+
+    private void dispatch() {
+        if (scheduled.compareAndSet(false, true))
+            Execution.execute(this::tick);
+    }
+
+    private void tick() {
+        try {
+            run();
+        }
+        finally {
+            scheduled.set(false);
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package util;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static util.Logger.log;
+
+/**
+ * A hashed timer wheel that keeps every timeout and periodic tick of the program on one thread.
+ * Scheduling and cancelling are O(1).
+ * Expired tasks run on the wheel's thread, so they must be short;
+ * anything that blocks should be passed on to {@link Execution}.
+ *
+ * @version 1.1
+ */
+public class TimerWheel {
+
+    public static final long TICK = 10;  // ms
+    private static final int SLOTS = 512;  // A power of two, so that the slot is a mask away.
+    private static final int MASK = SLOTS - 1;
+
+    private static final Bucket[] WHEEL = new Bucket[SLOTS];
+    private static final ConcurrentLinkedQueue<Timeout> ADDED = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Timeout> CANCELLED = new ConcurrentLinkedQueue<>();
+    /** Periodic timeouts that expired in the current tick, accessed only by the wheel's thread. */
+    private static final ArrayDeque<Timeout> RESCHEDULED = new ArrayDeque<>();
+    private static final long START = System.nanoTime();
+
+    private static volatile boolean running = true;
+    private static long tick = 0;
+
+    static {
+        for (int i = 0; i < SLOTS; i++)
+            WHEEL[i] = new Bucket();
+        Thread t = new Thread(TimerWheel::run, "timer-wheel");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    private static long now() {
+        return (System.nanoTime() - START) / 1000000;
+    }
+
+    /**
+     * Runs the task once, after the given delay.
+     *
+     * @param delay how long to wait (ms)
+     * @param task  the task to run on the wheel's thread
+     * @return a handle to cancel the task with
+     */
+    public static Timeout schedule(long delay, Runnable task) {
+        Timeout timeout = new Timeout(task, now() + delay, 0);
+        ADDED.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Runs the task every period, starting one period from now.
+     *
+     * @param period the time between runs (ms)
+     * @param task   the task to run on the wheel's thread
+     * @return a handle to cancel the task with
+     */
+    public static Timeout every(long period, Runnable task) {
+        Timeout timeout = new Timeout(task, now() + period, period);
+        ADDED.add(timeout);
+        return timeout;
+    }
+
+    /** Stops the wheel. Timeouts that have not expired yet never will. */
+    public static void stop() {
+        running = false;
+    }
+
+    /** Places the timeout relative to {@link #tick}, the next tick to be processed. */
+    private static void place(Timeout timeout) {
+        long expiresAt = Math.max(timeout.deadline / TICK, tick);
+        timeout.rounds = (expiresAt - tick) / SLOTS;
+        WHEEL[(int) (expiresAt & MASK)].add(timeout);
+    }
+
+    private static void transferAdded() {
+        Timeout timeout;
+        while ((timeout = ADDED.poll()) != null)
+            if (timeout.state.get() == Timeout.WAITING)
+                place(timeout);
+    }
+
+    private static void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = CANCELLED.poll()) != null)
+            if (timeout.bucket != null)
+                timeout.bucket.remove(timeout);
+    }
+
+    private static void waitForTick() {
+        long sleep = (tick + 1) * TICK - now();
+        if (sleep <= 0) return;
+        try {
+            Thread.sleep(sleep);
+        }
+        catch (InterruptedException ignored) {
+        }
+    }
+
+    private static void run() {
+        while (running) {
+            waitForTick();
+            transferAdded();
+            removeCancelled();
+            WHEEL[(int) (tick & MASK)].expire();
+            tick++;  // Before rescheduling, or the expired slot would count as a whole revolution ahead.
+            while (!RESCHEDULED.isEmpty())
+                place(RESCHEDULED.poll());
+        }
+    }
+
+    /** A task waiting in the wheel. */
+    public static class Timeout {
+
+        private static final int WAITING = 0;
+        private static final int CANCELLED_STATE = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long period;
+        private final AtomicInteger state = new AtomicInteger(WAITING);
+        private long deadline;
+        private long rounds;
+        private Timeout previous;
+        private Timeout next;
+        private Bucket bucket;
+
+        private Timeout(Runnable task, long deadline, long period) {
+            this.task = task;
+            this.deadline = deadline;
+            this.period = period;
+        }
+
+        /** Stops the task from running again. Has no effect on a run already in progress. */
+        public void cancel() {
+            if (state.compareAndSet(WAITING, CANCELLED_STATE))
+                CANCELLED.add(this);
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED_STATE;
+        }
+
+        private void expire() {
+            try {
+                task.run();
+            }
+            catch (Exception e) {
+                log(e);
+            }
+
+            if (period == 0) {
+                state.compareAndSet(WAITING, EXPIRED);
+                return;
+            }
+            if (state.get() != WAITING) return;
+            deadline += period;
+            RESCHEDULED.add(this);
+        }
+    }
+
+    /** A doubly linked list of the timeouts that hash to the same slot. */
+    private static class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = tail;
+            timeout.next = null;
+            if (tail == null) head = timeout;
+            else tail.next = timeout;
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous == null) head = timeout.next;
+            else timeout.previous.next = timeout.next;
+            if (timeout.next == null) tail = timeout.previous;
+            else timeout.next.previous = timeout.previous;
+            timeout.previous = timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        void expire() {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.rounds > 0) timeout.rounds--;
+                else {
+                    remove(timeout);
+                    if (timeout.state.get() == Timeout.WAITING)
+                        timeout.expire();
+                }
+                timeout = next;
+            }
+        }
+    }
+}